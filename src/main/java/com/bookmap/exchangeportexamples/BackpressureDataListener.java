@@ -0,0 +1,546 @@
+package com.bookmap.exchangeportexamples;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.data.MarketMode;
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * A data listener that decouples a (possibly slow) consumer from the provider thread.
+ *
+ * Events received from the provider are put into a bounded queue and delivered to the consumer on a dedicated thread.
+ * When the queue is full, the configured {@link BackpressurePolicy} decides what happens. Every dropped event is
+ * counted per alias, and as soon as a depth update of an alias is lost, the book of that alias is marked unreliable
+ * (the consumer's view of it no longer matches the exchange). It stays unreliable until the book is reset: re-subscribe
+ * to the instrument, and call {@link #markBookReliable} when the provider starts sending the fresh snapshot. The
+ * book becomes reliable once everything queued before that call has reached the consumer.
+ *
+ * Dropped trades and market mode changes are counted as well, but don't make the book unreliable.
+ */
+public class BackpressureDataListener implements Layer1ApiDataListener, AutoCloseable {
+
+    /**
+     * Receives gap notifications.
+     */
+    public interface GapListener {
+        /**
+         * A depth update of this alias has been dropped, the consumer's order book is no longer accurate.
+         * Called once per alias, until the book is reliable again. Called on the provider thread, so it should
+         * return quickly.
+         */
+        void onBookUnreliable(String alias);
+
+        /**
+         * Everything queued before {@link #markBookReliable} has been delivered, the events that follow are the fresh
+         * snapshot. Called on the consumer thread, so this is where the consumer should clear its order book.
+         */
+        void onBookReliable(String alias);
+
+        /**
+         * The consumer has been disconnected by the {@link BackpressurePolicy#DISCONNECT} policy. Called on the
+         * provider thread.
+         */
+        void onConsumerDisconnected();
+    }
+
+    private static final int TRADE = 0;
+    private static final int DEPTH = 1;
+    private static final int MARKET_MODE = 2;
+    /**
+     * Not delivered to the consumer, marks where the stale events of a book end. See {@link #markBookReliable}.
+     */
+    private static final int RESET_MARKER = 3;
+
+    /**
+     * A queue slot. Slots are allocated once and reused, so queueing an event doesn't allocate.
+     */
+    private static class Event {
+
+        private int kind;
+        private String alias;
+        private boolean isBid;
+        private double priceLevel;
+        private int sizeLevel;
+        private TradeInfo tradeInfo;
+        private MarketMode marketMode;
+
+        /**
+         * Whether this slot is registered in {@link #levelIndex}, when conflating.
+         */
+        private boolean isIndexed;
+    }
+
+    private final Layer1ApiDataListener consumer;
+    private final BackpressurePolicy policy;
+    private final GapListener gapListener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    // The fields below are guarded by 'lock'.
+    private final Event[] queue;
+    /**
+     * Sequence number of the oldest queued event. The event is stored at index 'head % queue.length'.
+     */
+    private long head;
+    /**
+     * Sequence number the next queued event will get.
+     */
+    private long tail;
+    /**
+     * Queued depth updates by price level, as an open addressing hash table (linear probing) of 'slot index + 1', 0
+     * meaning an empty entry. It has at least twice as many entries as the queue has slots, so it never fills up,
+     * and unlike a HashMap it doesn't allocate anything. Only used with {@link BackpressurePolicy#CONFLATE}.
+     */
+    private final int[] levelIndex;
+    private boolean isDisconnected;
+    private boolean isClosed;
+
+    private final Map<String, AtomicLong> droppedEvents = new ConcurrentHashMap<>();
+    private final Set<String> unreliableBooks = ConcurrentHashMap.newKeySet();
+    /**
+     * Sequence number of the reset marker that is on its way to the consumer, by alias. Written while holding the
+     * lock.
+     */
+    private final Map<String, Long> pendingResets = new ConcurrentHashMap<>();
+    private final AtomicLong conflatedEvents = new AtomicLong();
+
+    /**
+     * @param name Used to name the consumer thread.
+     * @param consumer The listener the events are delivered to.
+     * @param policy What to do when the consumer falls behind by more than 'capacity' events.
+     * @param capacity Maximum number of queued events.
+     * @param gapListener Notified about dropped depth updates, book resets and disconnection. May be null.
+     */
+    public BackpressureDataListener(
+        String name,
+        Layer1ApiDataListener consumer,
+        BackpressurePolicy policy,
+        int capacity,
+        GapListener gapListener
+    ) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+        }
+        this.consumer = consumer;
+        this.policy = policy;
+        this.gapListener = gapListener;
+
+        queue = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            queue[i] = new Event();
+        }
+        levelIndex = policy == BackpressurePolicy.CONFLATE ? new int[Integer.highestOneBit(capacity) * 4] : null;
+
+        Thread consumerThread = new Thread(this::deliverEvents, "backpressure-" + name);
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+    }
+
+    @Override
+    public void onTrade(String alias, double priceLevel, int sizeLevel, TradeInfo tradeInfo) {
+        offer(TRADE, alias, tradeInfo.isBidAggressor, priceLevel, sizeLevel, tradeInfo, null);
+    }
+
+    @Override
+    public void onDepth(String alias, boolean isBid, int priceLevel, int sizeLevel) {
+        offer(DEPTH, alias, isBid, priceLevel, sizeLevel, null, null);
+    }
+
+    @Override
+    public void onMarketMode(String alias, MarketMode marketMode) {
+        offer(MARKET_MODE, alias, false, 0, 0, null, marketMode);
+    }
+
+    /**
+     * @return Total number of events of this alias that have been dropped (and never delivered to the consumer).
+     */
+    public long getDroppedEvents(String alias) {
+        AtomicLong counter = droppedEvents.get(alias);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @return Total number of depth updates that have been merged into an already queued update of the same price
+     *     level. Conflated updates are not lost, so they are not counted as dropped.
+     */
+    public long getConflatedEvents() {
+        return conflatedEvents.get();
+    }
+
+    /**
+     * @return Whether depth updates of this alias have been dropped, and the book hasn't been reset since (or the
+     *     consumer has been disconnected). Stays true while a reset is pending.
+     */
+    public boolean isBookUnreliable(String alias) {
+        return unreliableBooks.contains(alias) || isDisconnected();
+    }
+
+    /**
+     * @return Whether {@link #markBookReliable} has been called for this alias, but the consumer hasn't reached that
+     *     point yet.
+     */
+    public boolean isBookResetPending(String alias) {
+        return pendingResets.containsKey(alias);
+    }
+
+    /**
+     * Resets the book of the alias: the events received after this call (the fresh snapshot, after re-subscribing)
+     * are no longer conflated with the stale ones, and once the consumer has received everything queued before this
+     * call, the book is marked reliable and {@link GapListener#onBookReliable} is called.
+     *
+     * Call it on the provider thread when the snapshot starts, e.g. from onInstrumentAdded, so that no event ends up
+     * on the wrong side of the reset. If a depth update of the alias received after this call is dropped before the
+     * reset reaches the consumer (or the reset itself is dropped), the reset is cancelled and the book stays
+     * unreliable. Dropping the stale updates queued before it doesn't matter, since the consumer clears its book at
+     * the reset anyway. The dropped event counter is never reset.
+     */
+    public void markBookReliable(String alias) {
+        offer(RESET_MARKER, alias, false, 0, 0, null, null);
+    }
+
+    public boolean isDisconnected() {
+        lock.lock();
+        try {
+            return isDisconnected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of events waiting to be delivered to the consumer.
+     */
+    public int getQueuedEvents() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the consumer thread. Events that haven't been delivered yet are discarded.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            isClosed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void offer(
+        int kind,
+        String alias,
+        boolean isBid,
+        double priceLevel,
+        int sizeLevel,
+        TradeInfo tradeInfo,
+        MarketMode marketMode
+    ) {
+        // Notifications are sent after releasing the lock, so a slow gap listener can't hold up the consumer.
+        String newlyUnreliableAlias = null;
+        boolean hasJustDisconnected = false;
+
+        lock.lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+            if (isDisconnected) {
+                newlyUnreliableAlias = recordDrop(kind, alias, tail);
+                return;
+            }
+
+            if (policy == BackpressurePolicy.CONFLATE && kind == DEPTH) {
+                Event queued = findQueuedLevel(alias, isBid, (int) priceLevel);
+                if (queued != null) {
+                    queued.sizeLevel = sizeLevel;
+                    conflatedEvents.incrementAndGet();
+                    return;
+                }
+            }
+
+            if (tail - head == queue.length) {
+                switch (policy) {
+                    case BLOCK:
+                        while (tail - head == queue.length && !isClosed) {
+                            try {
+                                notFull.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                newlyUnreliableAlias = recordDrop(kind, alias, tail);
+                                return;
+                            }
+                        }
+                        if (isClosed) {
+                            return;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        int oldestSlot = (int) (head % queue.length);
+                        Event oldest = queue[oldestSlot];
+                        newlyUnreliableAlias = recordDrop(oldest.kind, oldest.alias, head);
+                        release(oldestSlot);
+                        head++;
+                        break;
+                    case DROP_NEWEST:
+                    case CONFLATE:
+                        newlyUnreliableAlias = recordDrop(kind, alias, tail);
+                        return;
+                    case DISCONNECT:
+                        disconnect();
+                        hasJustDisconnected = true;
+                        newlyUnreliableAlias = recordDrop(kind, alias, tail);
+                        return;
+                    default:
+                        throw new IllegalStateException("Unknown policy " + policy);
+                }
+            }
+
+            int slot = (int) (tail % queue.length);
+            Event event = queue[slot];
+            event.kind = kind;
+            event.alias = alias;
+            event.isBid = isBid;
+            event.priceLevel = priceLevel;
+            event.sizeLevel = sizeLevel;
+            event.tradeInfo = tradeInfo;
+            event.marketMode = marketMode;
+            if (kind == RESET_MARKER) {
+                pendingResets.put(alias, tail);
+                // Updates of the fresh snapshot must not be merged into the stale ones queued before the marker.
+                if (policy == BackpressurePolicy.CONFLATE) {
+                    removeFromLevelIndex(alias);
+                }
+            } else if (policy == BackpressurePolicy.CONFLATE && kind == DEPTH) {
+                addToLevelIndex(slot);
+            }
+            tail++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+            if (gapListener != null) {
+                if (hasJustDisconnected) {
+                    gapListener.onConsumerDisconnected();
+                }
+                if (newlyUnreliableAlias != null) {
+                    gapListener.onBookUnreliable(newlyUnreliableAlias);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts a dropped event. Must be called while holding the lock.
+     *
+     * @param sequence Sequence number of the dropped event. For an event that is dropped instead of being queued, the
+     *     one it would have got ('tail').
+     * @return The alias, if this drop has made its book unreliable, otherwise null.
+     */
+    private String recordDrop(int kind, String alias, long sequence) {
+        // Reset markers are not events of the exchange, so they are not counted. Losing one still breaks the book,
+        // since the consumer can't tell the stale events from the snapshot any more.
+        if (kind != RESET_MARKER) {
+            droppedEvents.computeIfAbsent(alias, a -> new AtomicLong()).incrementAndGet();
+            if (kind != DEPTH) {
+                return null;
+            }
+        }
+        Long resetSequence = pendingResets.get(alias);
+        if (resetSequence != null) {
+            if (sequence < resetSequence) {
+                // Queued before the pending reset, so stale anyway (this includes markers of older resets).
+                return null;
+            }
+            pendingResets.remove(alias);
+        }
+        if (!isDisconnected && unreliableBooks.add(alias)) {
+            return alias;
+        }
+        return null;
+    }
+
+    /**
+     * Drops everything queued and stops delivering to the consumer. Must be called while holding the lock.
+     */
+    private void disconnect() {
+        while (head < tail) {
+            int slot = (int) (head % queue.length);
+            recordDrop(queue[slot].kind, queue[slot].alias, head);
+            release(slot);
+            head++;
+        }
+        isDisconnected = true;
+        notEmpty.signalAll();
+    }
+
+    /**
+     * Clears references held by a slot that is leaving the queue. Must be called while holding the lock.
+     */
+    private void release(int slot) {
+        Event event = queue[slot];
+        if (event.isIndexed) {
+            removeFromLevelIndex(slot);
+        }
+        event.alias = null;
+        event.tradeInfo = null;
+        event.marketMode = null;
+    }
+
+    private int getLevelIndexPosition(String alias, boolean isBid, int priceLevel) {
+        int hash = 31 * (31 * alias.hashCode() + (isBid ? 1 : 0)) + priceLevel;
+        // Mix the high bits into the low ones, which are the only ones used to pick the position.
+        return (hash ^ (hash >>> 16)) & (levelIndex.length - 1);
+    }
+
+    /**
+     * @return The queued depth update of this price level, or null. Must be called while holding the lock.
+     */
+    private Event findQueuedLevel(String alias, boolean isBid, int priceLevel) {
+        for (int i = getLevelIndexPosition(alias, isBid, priceLevel); ; i = (i + 1) & (levelIndex.length - 1)) {
+            int entry = levelIndex[i];
+            if (entry == 0) {
+                return null;
+            }
+            Event event = queue[entry - 1];
+            if (event.isBid == isBid && (int) event.priceLevel == priceLevel && event.alias.equals(alias)) {
+                return event;
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private void addToLevelIndex(int slot) {
+        Event event = queue[slot];
+        int i = getLevelIndexPosition(event.alias, event.isBid, (int) event.priceLevel);
+        while (levelIndex[i] != 0) {
+            i = (i + 1) & (levelIndex.length - 1);
+        }
+        levelIndex[i] = slot + 1;
+        event.isIndexed = true;
+    }
+
+    /**
+     * Removes all queued depth updates of the alias from the index, so that no further updates are merged into them.
+     * Must be called while holding the lock.
+     */
+    private void removeFromLevelIndex(String alias) {
+        for (long sequence = head; sequence < tail; sequence++) {
+            int slot = (int) (sequence % queue.length);
+            if (queue[slot].isIndexed && queue[slot].alias.equals(alias)) {
+                removeFromLevelIndex(slot);
+            }
+        }
+    }
+
+    /**
+     * Removes the slot from the index, moving back the entries that follow it, so that lookups still find them
+     * without probing past an empty entry. Must be called while holding the lock, before the slot is cleared.
+     */
+    private void removeFromLevelIndex(int slot) {
+        Event event = queue[slot];
+        int mask = levelIndex.length - 1;
+        int i = getLevelIndexPosition(event.alias, event.isBid, (int) event.priceLevel);
+        while (levelIndex[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+        event.isIndexed = false;
+
+        // 'i' is the empty entry, look for a following entry that may be moved into it.
+        for (int j = (i + 1) & mask; levelIndex[j] != 0; j = (j + 1) & mask) {
+            Event moved = queue[levelIndex[j] - 1];
+            int home = getLevelIndexPosition(moved.alias, moved.isBid, (int) moved.priceLevel);
+            // The entry at 'j' can move to 'i' only if its home position isn't cyclically within (i, j].
+            boolean canMove = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (canMove) {
+                levelIndex[i] = levelIndex[j];
+                i = j;
+            }
+        }
+        levelIndex[i] = 0;
+    }
+
+    private void deliverEvents() {
+        while (true) {
+            int kind;
+            String alias;
+            boolean isBid;
+            double priceLevel;
+            int sizeLevel;
+            TradeInfo tradeInfo;
+            MarketMode marketMode;
+            boolean isReset = false;
+
+            lock.lock();
+            try {
+                while (head == tail && !isClosed && !isDisconnected) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (isClosed || isDisconnected) {
+                    return;
+                }
+
+                // Copy the event out of its slot, since the slot may be reused as soon as the lock is released.
+                Event event = queue[(int) (head % queue.length)];
+                kind = event.kind;
+                alias = event.alias;
+                isBid = event.isBid;
+                priceLevel = event.priceLevel;
+                sizeLevel = event.sizeLevel;
+                tradeInfo = event.tradeInfo;
+                marketMode = event.marketMode;
+                if (kind == RESET_MARKER) {
+                    Long resetSequence = pendingResets.get(alias);
+                    // A newer reset, or a drop since the marker was queued, makes this marker obsolete.
+                    if (resetSequence != null && resetSequence == head) {
+                        pendingResets.remove(alias);
+                        unreliableBooks.remove(alias);
+                        isReset = true;
+                    }
+                }
+                release((int) (head % queue.length));
+                head++;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                switch (kind) {
+                    case TRADE:
+                        consumer.onTrade(alias, priceLevel, sizeLevel, tradeInfo);
+                        break;
+                    case DEPTH:
+                        consumer.onDepth(alias, isBid, (int) priceLevel, sizeLevel);
+                        break;
+                    case MARKET_MODE:
+                        consumer.onMarketMode(alias, marketMode);
+                        break;
+                    case RESET_MARKER:
+                        if (isReset && gapListener != null) {
+                            gapListener.onBookReliable(alias);
+                        }
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // Keep delivering - one faulty event shouldn't stop the consumer.
+                e.printStackTrace();
+            }
+        }
+    }
+}
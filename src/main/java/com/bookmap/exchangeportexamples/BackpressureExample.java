@@ -0,0 +1,150 @@
+package com.bookmap.exchangeportexamples;
+
+import com.bookmap.exchangeport.ConnectivityClient;
+import java.util.concurrent.atomic.AtomicBoolean;
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.Layer1ApiInstrumentListener;
+import velox.api.layer1.Layer1ApiProvider;
+import velox.api.layer1.data.InstrumentInfo;
+import velox.api.layer1.data.MarketMode;
+import velox.api.layer1.data.SubscribeInfoCrypto;
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * This example demonstrates how to protect the provider thread from a consumer that can't keep up with the market data.
+ *
+ * All callbacks of a provider are called on the same thread, so if one listener is slow, the whole feed stalls
+ * (and the events pile up inside the library). {@link BackpressureDataListener} puts a bounded queue between the
+ * provider and the slow listener, and lets you choose what happens when the queue is full.
+ */
+public class BackpressureExample {
+
+    private static final String ALIAS = "BTCUSD_PERP";
+    private static final double SELECTED_PIP = 0.1;
+    private static final double SELECTED_SIZE_INCREMENT = 0.001;
+
+    private final ConnectivityClient client;
+
+    public BackpressureExample() {
+        client = new ConnectivityClient(Settings.EXCHANGEPORT_TOKEN);
+    }
+
+    public void run() throws Exception {
+        Layer1ApiProvider binanceFuturesProvider = client.binanceFutures(false, "100 milliseconds");
+
+        // A listener that takes way too long to process each event.
+        Layer1ApiDataListener slowListener = new Layer1ApiDataListener() {
+            @Override
+            public void onTrade(String alias, double priceLevel, int sizeLevel, TradeInfo tradeInfo) {
+                simulateWork();
+            }
+
+            @Override
+            public void onDepth(String alias, boolean isBid, int priceLevel, int sizeLevel) {
+                simulateWork();
+            }
+
+            @Override
+            public void onMarketMode(String alias, MarketMode marketMode) {
+                // Not used in blockchain exchanges.
+            }
+        };
+
+        // With CONFLATE, updates of the same price level that are still waiting in the queue are merged. This is
+        // often enough to keep up during bursts, since most updates touch the levels close to the best bid/ask.
+        // If that's not enough, updates are dropped, and we get notified that our order book can't be trusted.
+        BackpressureDataListener bufferedListener = new BackpressureDataListener(
+            "binance-futures",
+            slowListener,
+            BackpressurePolicy.CONFLATE,
+            10_000,
+            new BackpressureDataListener.GapListener() {
+                @Override
+                public void onBookUnreliable(String alias) {
+                    System.out.println("Order book of " + alias + " is unreliable, depth updates have been dropped.");
+                }
+
+                @Override
+                public void onBookReliable(String alias) {
+                    // Called on the consumer thread, between the stale events and the fresh snapshot. A real consumer
+                    // would clear its order book here.
+                    System.out.println("Order book of " + alias + " has been reset, a fresh snapshot follows.");
+                }
+
+                @Override
+                public void onConsumerDisconnected() {
+                    System.out.println("Consumer has been disconnected.");
+                }
+            }
+        );
+        binanceFuturesProvider.addListener(bufferedListener);
+
+        AtomicBoolean isResubscribing = new AtomicBoolean();
+        // The provider sends a fresh order book snapshot right after the instrument is added, i.e. after each
+        // (re-)subscription. Resetting the book here, on the provider thread, puts the reset exactly between the stale
+        // events still waiting in the queue and the snapshot.
+        binanceFuturesProvider.addListener(
+            new Layer1ApiInstrumentListener() {
+                @Override
+                public void onInstrumentAdded(String alias, InstrumentInfo instrumentInfo) {
+                    bufferedListener.markBookReliable(alias);
+                    isResubscribing.set(false);
+                }
+
+                @Override
+                public void onInstrumentRemoved(String alias) {}
+
+                @Override
+                public void onInstrumentNotFound(String symbol, String type, String exchange) {}
+
+                @Override
+                public void onInstrumentAlreadySubscribed(String symbol, String type, String exchange) {}
+            }
+        );
+
+        binanceFuturesProvider.subscribe(
+            new SubscribeInfoCrypto(ALIAS, null, null, SELECTED_PIP, 1 / SELECTED_SIZE_INCREMENT)
+        );
+
+        for (int i = 0; i < 30; i++) {
+            Thread.sleep(1000);
+            System.out.printf(
+                "queued=%s conflated=%s dropped=%s unreliable=%s%n",
+                bufferedListener.getQueuedEvents(),
+                bufferedListener.getConflatedEvents(),
+                bufferedListener.getDroppedEvents(ALIAS),
+                bufferedListener.isBookUnreliable(ALIAS)
+            );
+
+            // The book stays unreliable until the consumer gets to the reset, don't re-subscribe again meanwhile.
+            if (
+                bufferedListener.isBookUnreliable(ALIAS) &&
+                !isResubscribing.get() &&
+                !bufferedListener.isBookResetPending(ALIAS)
+            ) {
+                isResubscribing.set(true);
+                // Re-subscribing makes the provider send a fresh order book snapshot, after which the book can be
+                // trusted again.
+                binanceFuturesProvider.unsubscribe(ALIAS);
+                binanceFuturesProvider.subscribe(
+                    new SubscribeInfoCrypto(ALIAS, null, null, SELECTED_PIP, 1 / SELECTED_SIZE_INCREMENT)
+                );
+            }
+        }
+
+        bufferedListener.close();
+        binanceFuturesProvider.close();
+    }
+
+    private static void simulateWork() {
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new BackpressureExample().run();
+    }
+}
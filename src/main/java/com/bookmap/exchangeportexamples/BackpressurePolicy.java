@@ -0,0 +1,35 @@
+package com.bookmap.exchangeportexamples;
+
+/**
+ * What a {@link BackpressureDataListener} does when its consumer falls behind and the queue is full.
+ */
+public enum BackpressurePolicy {
+    /**
+     * Block the provider thread until the consumer frees up space. Nothing is ever dropped, but a slow consumer
+     * stalls the whole feed of that provider.
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest queued event to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the incoming event and keep what is already queued.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Merge a depth update into the update already queued for the same alias, side and price level (only the latest
+     * size of a level matters for the book). Events that cannot be merged into a full queue are dropped like with
+     * {@link #DROP_NEWEST}.
+     */
+    CONFLATE,
+
+    /**
+     * Stop delivering to the consumer altogether. All queued and further events are dropped, and every alias is
+     * marked unreliable.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,768 @@
+package com.bookmap.exchangeportexamples;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import velox.api.layer1.Layer1ApiProvider;
+import velox.api.layer1.data.DefaultAndList;
+import velox.api.layer1.data.Layer1ApiProviderSupportedFeatures;
+import velox.api.layer1.data.SubscribeInfo;
+import velox.api.layer1.data.SubscribeInfoCrypto;
+
+/**
+ * Finds the same instrument on different exchanges.
+ *
+ * Exchanges name their instruments differently: the ETH / USD perpetual is PI_ETHUSD on Kraken Futures, ETHUSD_PERP
+ * on Binance Futures, ETH-PERP on FTX. This index maps every known instrument of every provider to a
+ * {@link CanonicalInstrument} (base currency, quote currency and contract type), so that you can look up the
+ * instrument on all exchanges at once, together with its minimum pip and size increment. An exchange may list several
+ * instruments for one canonical instrument (futures with different expiry dates, inverse and linear perpetuals such
+ * as PI_XBTUSD and PF_XBTUSD on Kraken Futures), all of them are kept.
+ *
+ * Providers are identified by the name of the {@code ConnectivityClient} method that creates them (e.g.
+ * "binanceFutures"). The name is used to tell what kind of instruments a provider lists when the symbol itself doesn't
+ * say (BTCUSDT is a spot instrument on Binance Spot but a perpetual on Binance Futures).
+ *
+ * The normalization is based on naming conventions, so a few exotic symbols may not be recognized. Such symbols are
+ * simply not in the index, use {@link #getUnrecognizedSymbols} to see them. Options and MOVE contracts are not
+ * supported.
+ *
+ * Building the index asks each provider for all of its instruments, which takes a while. The providers are queried
+ * concurrently, and the index can be saved to a file and loaded on the next start, see {@link #loadOrBuild}.
+ */
+public class InstrumentIndex {
+
+    public enum ContractType {
+        SPOT,
+        PERPETUAL,
+        /**
+         * A future with an expiry date. Futures with different expiry dates map to the same canonical instrument,
+         * see {@link VenueInstrument#getSymbol()} to tell them apart.
+         */
+        FUTURE
+    }
+
+    /**
+     * An exchange-independent identification of an instrument, e.g. BTC / USD perpetual.
+     */
+    public static final class CanonicalInstrument {
+
+        public final String base;
+        public final String quote;
+        public final ContractType contractType;
+
+        public CanonicalInstrument(String base, String quote, ContractType contractType) {
+            this.base = base;
+            this.quote = quote;
+            this.contractType = contractType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CanonicalInstrument)) {
+                return false;
+            }
+            CanonicalInstrument other = (CanonicalInstrument) o;
+            return base.equals(other.base) && quote.equals(other.quote) && contractType == other.contractType;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * base.hashCode() + quote.hashCode()) + contractType.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return base + "/" + quote + " " + contractType;
+        }
+    }
+
+    /**
+     * An instrument on a specific exchange.
+     */
+    public static final class VenueInstrument {
+
+        public final String provider;
+        public final CanonicalInstrument canonicalInstrument;
+        /**
+         * As listed in the provider's known instruments.
+         */
+        public final SubscribeInfo subscribeInfo;
+        /**
+         * Instrument pip (the minimum available pip).
+         */
+        public final double pip;
+        /**
+         * Instrument size increment (the minimum available size increment).
+         */
+        public final double sizeIncrement;
+
+        private VenueInstrument(
+            String provider,
+            CanonicalInstrument canonicalInstrument,
+            SubscribeInfo subscribeInfo,
+            double pip,
+            double sizeIncrement
+        ) {
+            this.provider = provider;
+            this.canonicalInstrument = canonicalInstrument;
+            this.subscribeInfo = subscribeInfo;
+            this.pip = pip;
+            this.sizeIncrement = sizeIncrement;
+        }
+
+        public String getSymbol() {
+            return subscribeInfo.symbol;
+        }
+
+        /**
+         * @return Subscription to this instrument, using the instrument pip and size increment.
+         */
+        public SubscribeInfoCrypto createSubscribeInfo() {
+            return new SubscribeInfoCrypto(
+                subscribeInfo.symbol,
+                subscribeInfo.exchange,
+                subscribeInfo.type,
+                pip,
+                1 / sizeIncrement
+            );
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%s %s (%s): pip=%s sizeIncrement=%s",
+                provider,
+                subscribeInfo.symbol,
+                canonicalInstrument,
+                pip,
+                sizeIncrement
+            );
+        }
+    }
+
+    /**
+     * Type of instruments listed by each provider, when the symbol doesn't tell. Keys are the names of the
+     * {@code ConnectivityClient} methods. Providers not listed here are assumed to list spot instruments.
+     */
+    private static final Map<String, ContractType> DEFAULT_CONTRACT_TYPES = new HashMap<String, ContractType>() {
+        {
+            put("binanceFutures", ContractType.PERPETUAL);
+            put("bybit", ContractType.PERPETUAL);
+            put("deribit", ContractType.PERPETUAL);
+            put("krakenFutures", ContractType.PERPETUAL);
+        }
+    };
+
+    /**
+     * Currencies that exchanges use under a different name.
+     */
+    private static final Map<String, String> CURRENCY_ALIASES = new HashMap<String, String>() {
+        {
+            put("XBT", "BTC");
+            put("XXBT", "BTC");
+            put("XDG", "DOGE");
+            put("XXDG", "DOGE");
+        }
+    };
+    /**
+     * Bitfinex calls Tether UST, which is TerraUSD everywhere else.
+     */
+    private static final Map<String, String> BITFINEX_CURRENCY_ALIASES = Collections.singletonMap("UST", "USDT");
+
+    /**
+     * Used to split symbols without a separator (BTCUSDT), see {@link #findQuoteSuffix}. TUSD and BUSD end with USD,
+     * so whether e.g. BATUSD is BAT / USD or BA / TUSD depends on the base currency.
+     */
+    private static final List<String> QUOTE_CURRENCIES = Arrays.asList(
+        "USDT",
+        "BUSD",
+        "USDC",
+        "TUSD",
+        "EURT",
+        "USD",
+        "EUR",
+        "GBP",
+        "JPY",
+        "KRW",
+        "TRY",
+        "BRL",
+        "AUD",
+        "DAI",
+        "PAX",
+        "UST",
+        "BTC",
+        "XBT",
+        "ETH",
+        "BNB"
+    );
+
+    /**
+     * Base currencies that are common enough to be sure about, used to pick the right split of a symbol that could
+     * end with several quote currencies (BATUSD, DOTUSD). The quote currencies above count as known bases as well.
+     */
+    private static final Set<String> KNOWN_BASES = new HashSet<>(
+        Arrays.asList(
+            "AAVE",
+            "ADA",
+            "ALGO",
+            "ATOM",
+            "AVAX",
+            "BAT",
+            "BCH",
+            "COMP",
+            "CRV",
+            "DASH",
+            "DOGE",
+            "DOT",
+            "EOS",
+            "ETC",
+            "FIL",
+            "FTT",
+            "LINK",
+            "LTC",
+            "LUNA",
+            "MATIC",
+            "MKR",
+            "NEO",
+            "SOL",
+            "SUSHI",
+            "TRX",
+            "UNI",
+            "XLM",
+            "XMR",
+            "XRP",
+            "XTZ",
+            "YFI",
+            "ZEC"
+        )
+    );
+
+    /**
+     * Kraken Futures: PI_ (inverse) and PF_ (linear) perpetuals, FI_ and FF_ futures.
+     */
+    private static final Pattern KRAKEN_FUTURES_SYMBOL = Pattern.compile("(P|F)[IF]_(.+)");
+    /**
+     * Expiry dates: 210625 (Kraken, Binance), 0625 (FTX), 25JUN21 (Deribit).
+     */
+    private static final Pattern EXPIRY_DATE = Pattern.compile("\\d{6}|\\d{4}|\\d{1,2}[A-Z]{3}\\d{2}");
+    /**
+     * Kraken Spot: XXBTZUSD.
+     */
+    private static final Pattern KRAKEN_SPOT_SYMBOL = Pattern.compile("[XZ]([A-Z]{3})[XZ]([A-Z]{3})");
+    private static final Pattern SEPARATOR = Pattern.compile("[-_/:]");
+
+    private static final String CACHE_FILE_HEADER = "# InstrumentIndex v2";
+    /**
+     * Second line of the cache file, followed by the tab-separated provider names.
+     */
+    private static final String CACHE_FILE_PROVIDERS = "# Providers";
+
+    /**
+     * Names of the providers the index was built from, including the failed ones.
+     */
+    private final List<String> providers;
+    /**
+     * All instruments, in the order the providers list them. This is what gets saved, so that a loaded index lists
+     * them in the same order as a built one.
+     */
+    private final List<VenueInstrument> instruments;
+    /**
+     * Canonical instrument -> provider -> instruments, in the order the provider lists them.
+     */
+    private final Map<CanonicalInstrument, Map<String, List<VenueInstrument>>> byCanonicalInstrument;
+    /**
+     * Provider -> symbol -> instrument. A symbol listed more than once (on different exchanges of the provider) maps
+     * to the first listing.
+     */
+    private final Map<String, Map<String, VenueInstrument>> bySymbol;
+    /**
+     * Provider -> symbols that couldn't be normalized.
+     */
+    private final Map<String, List<String>> unrecognizedSymbols;
+    /**
+     * Providers whose instruments couldn't be read when building the index.
+     */
+    private final List<String> failedProviders;
+
+    private InstrumentIndex(
+        List<String> providers,
+        List<VenueInstrument> instruments,
+        Map<String, List<String>> unrecognizedSymbols,
+        List<String> failedProviders
+    ) {
+        Map<CanonicalInstrument, Map<String, List<VenueInstrument>>> byCanonicalInstrument = new HashMap<>();
+        Map<String, Map<String, VenueInstrument>> bySymbol = new HashMap<>();
+        for (VenueInstrument instrument : instruments) {
+            byCanonicalInstrument
+                .computeIfAbsent(instrument.canonicalInstrument, c -> new LinkedHashMap<>())
+                .computeIfAbsent(instrument.provider, p -> new ArrayList<>())
+                .add(instrument);
+            bySymbol
+                .computeIfAbsent(instrument.provider, p -> new HashMap<>())
+                .putIfAbsent(instrument.getSymbol(), instrument);
+        }
+        this.providers = providers;
+        this.instruments = instruments;
+        this.byCanonicalInstrument = byCanonicalInstrument;
+        this.bySymbol = bySymbol;
+        this.unrecognizedSymbols = unrecognizedSymbols;
+        this.failedProviders = failedProviders;
+    }
+
+    /**
+     * @return Provider -> instruments, for all providers that list the instrument. Empty if none does. A provider
+     *     may have several instruments for it, e.g. futures with different expiry dates.
+     */
+    public Map<String, List<VenueInstrument>> get(CanonicalInstrument canonicalInstrument) {
+        Map<String, List<VenueInstrument>> instruments = byCanonicalInstrument.get(canonicalInstrument);
+        return instruments == null ? Collections.emptyMap() : Collections.unmodifiableMap(instruments);
+    }
+
+    /**
+     * @return The instruments on this provider, in the order the provider lists them. Empty if it doesn't list any.
+     */
+    public List<VenueInstrument> get(CanonicalInstrument canonicalInstrument, String provider) {
+        Map<String, List<VenueInstrument>> instruments = byCanonicalInstrument.get(canonicalInstrument);
+        List<VenueInstrument> providerInstruments = instruments == null ? null : instruments.get(provider);
+        return providerInstruments == null
+            ? Collections.emptyList()
+            : Collections.unmodifiableList(providerInstruments);
+    }
+
+    /**
+     * @return The instrument with this symbol on this provider, or null if it isn't in the index. If the provider
+     *     lists the symbol on several exchanges, the first one listed, see {@link #get(CanonicalInstrument, String)}
+     *     for all of them.
+     */
+    public VenueInstrument getBySymbol(String provider, String symbol) {
+        Map<String, VenueInstrument> instruments = bySymbol.get(provider);
+        return instruments == null ? null : instruments.get(symbol);
+    }
+
+    /**
+     * @return Names of the providers the index was built from.
+     */
+    public List<String> getProviders() {
+        return Collections.unmodifiableList(providers);
+    }
+
+    public Set<CanonicalInstrument> getCanonicalInstruments() {
+        return Collections.unmodifiableSet(byCanonicalInstrument.keySet());
+    }
+
+    /**
+     * @return Symbols of this provider that couldn't be mapped to a canonical instrument.
+     */
+    public List<String> getUnrecognizedSymbols(String provider) {
+        return unrecognizedSymbols.getOrDefault(provider, Collections.emptyList());
+    }
+
+    /**
+     * @return Providers left out of the index because reading their instruments failed. Always empty for a loaded
+     *     index, since {@link #loadOrBuild} doesn't save incomplete ones.
+     */
+    public List<String> getFailedProviders() {
+        return Collections.unmodifiableList(failedProviders);
+    }
+
+    /**
+     * Queries all providers concurrently and builds the index. A provider that fails is left out, see
+     * {@link #getFailedProviders}.
+     *
+     * @param providers Provider name (name of the {@code ConnectivityClient} method) -> provider.
+     */
+    public static InstrumentIndex build(Map<String, Layer1ApiProvider> providers) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, providers.size()));
+        try {
+            Map<String, Future<List<VenueInstrument>>> futures = new LinkedHashMap<>();
+            Map<String, List<String>> unrecognizedSymbols = new LinkedHashMap<>();
+            for (Map.Entry<String, Layer1ApiProvider> provider : providers.entrySet()) {
+                List<String> providerUnrecognizedSymbols = Collections.synchronizedList(new ArrayList<>());
+                unrecognizedSymbols.put(provider.getKey(), providerUnrecognizedSymbols);
+                futures.put(
+                    provider.getKey(),
+                    executor.submit(
+                        () -> readInstruments(provider.getKey(), provider.getValue(), providerUnrecognizedSymbols)
+                    )
+                );
+            }
+
+            List<VenueInstrument> instruments = new ArrayList<>();
+            List<String> failedProviders = new ArrayList<>();
+            for (Map.Entry<String, Future<List<VenueInstrument>>> future : futures.entrySet()) {
+                try {
+                    instruments.addAll(future.getValue().get());
+                } catch (ExecutionException e) {
+                    // Leave the provider out, rather than failing the whole index.
+                    System.out.println("Could not read instruments of " + future.getKey());
+                    e.getCause().printStackTrace();
+                    failedProviders.add(future.getKey());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while building the instrument index", e);
+                }
+            }
+            return new InstrumentIndex(
+                new ArrayList<>(providers.keySet()),
+                instruments,
+                unrecognizedSymbols,
+                failedProviders
+            );
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Loads the index from the cache file if it's younger than 'maxAge' and was built from the same providers,
+     * otherwise builds it and saves it there. An index that is missing some providers (see
+     * {@link #getFailedProviders}) is returned but not saved, so the next call tries again rather than using the
+     * incomplete index for 'maxAge'.
+     *
+     * @param providerNames Names of the providers, the keys of the map returned by 'providers'.
+     * @param providers Only called when the index has to be built, since constructing providers takes time.
+     */
+    public static InstrumentIndex loadOrBuild(
+        Path cacheFile,
+        Duration maxAge,
+        Collection<String> providerNames,
+        Supplier<Map<String, Layer1ApiProvider>> providers
+    ) throws IOException {
+        if (Files.exists(cacheFile)) {
+            Instant modified = Files.getLastModifiedTime(cacheFile).toInstant();
+            if (modified.plus(maxAge).isAfter(Instant.now())) {
+                try {
+                    InstrumentIndex index = load(cacheFile);
+                    if (new HashSet<>(index.providers).equals(new HashSet<>(providerNames))) {
+                        return index;
+                    }
+                    System.out.println(
+                        "The instrument index in " + cacheFile + " is for " + index.providers + ", rebuilding it"
+                    );
+                } catch (IOException | RuntimeException e) {
+                    // A broken cache is not fatal, just rebuild it.
+                    System.out.println("Could not load the instrument index from " + cacheFile + ", rebuilding it");
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        InstrumentIndex index = build(providers.get());
+        if (index.failedProviders.isEmpty()) {
+            index.save(cacheFile);
+        } else {
+            System.out.println("Not saving the instrument index, it's missing " + index.failedProviders);
+        }
+        return index;
+    }
+
+    /**
+     * Saves the index as a tab-separated text file. The file is replaced atomically, so a concurrently running
+     * {@link #load} never sees it half-written.
+     */
+    public void save(Path file) throws IOException {
+        Path absoluteFile = file.toAbsolutePath();
+        Files.createDirectories(absoluteFile.getParent());
+        Path tempFile = Files.createTempFile(absoluteFile.getParent(), absoluteFile.getFileName().toString(), ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            writer.write(CACHE_FILE_HEADER);
+            writer.newLine();
+            writer.write(CACHE_FILE_PROVIDERS);
+            for (String provider : providers) {
+                writer.write("\t" + provider);
+            }
+            writer.newLine();
+            for (VenueInstrument instrument : instruments) {
+                writer.write(
+                    String.join(
+                        "\t",
+                        instrument.provider,
+                        instrument.subscribeInfo.symbol,
+                        nullToEmpty(instrument.subscribeInfo.exchange),
+                        nullToEmpty(instrument.subscribeInfo.type),
+                        Double.toString(instrument.pip),
+                        Double.toString(instrument.sizeIncrement),
+                        instrument.canonicalInstrument.base,
+                        instrument.canonicalInstrument.quote,
+                        instrument.canonicalInstrument.contractType.name()
+                    )
+                );
+                writer.newLine();
+            }
+            for (Map.Entry<String, List<String>> providerSymbols : unrecognizedSymbols.entrySet()) {
+                for (String symbol : providerSymbols.getValue()) {
+                    // Unrecognized symbols have no canonical instrument.
+                    writer.write(providerSymbols.getKey() + "\t" + symbol);
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tempFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static InstrumentIndex load(Path file) throws IOException {
+        List<String> providers;
+        List<VenueInstrument> instruments = new ArrayList<>();
+        Map<String, List<String>> unrecognizedSymbols = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (!CACHE_FILE_HEADER.equals(header)) {
+                throw new IOException("Not an instrument index file: " + file);
+            }
+            String providersLine = reader.readLine();
+            String[] providersFields = providersLine == null ? null : providersLine.split("\t", -1);
+            if (providersFields == null || !CACHE_FILE_PROVIDERS.equals(providersFields[0])) {
+                throw new IOException("Missing provider names in " + file);
+            }
+            providers = Arrays.asList(providersFields).subList(1, providersFields.length);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == 2) {
+                    unrecognizedSymbols.computeIfAbsent(fields[0], p -> new ArrayList<>()).add(fields[1]);
+                    continue;
+                }
+                if (fields.length != 9) {
+                    throw new IOException("Malformed line in " + file + ": " + line);
+                }
+                instruments.add(
+                    new VenueInstrument(
+                        fields[0],
+                        new CanonicalInstrument(fields[6], fields[7], ContractType.valueOf(fields[8])),
+                        new SubscribeInfo(fields[1], emptyToNull(fields[2]), emptyToNull(fields[3])),
+                        Double.parseDouble(fields[4]),
+                        Double.parseDouble(fields[5])
+                    )
+                );
+            }
+        }
+        return new InstrumentIndex(providers, instruments, unrecognizedSymbols, Collections.emptyList());
+    }
+
+    /**
+     * Maps an exchange's symbol to a canonical instrument.
+     *
+     * @param provider Name of the {@code ConnectivityClient} method that created the provider.
+     * @return Null if the symbol doesn't follow any of the known naming conventions (or is an option or a MOVE
+     *     contract).
+     */
+    public static CanonicalInstrument normalize(String provider, String symbol) {
+        return normalize(provider, symbol, Collections.emptySet());
+    }
+
+    /**
+     * @param providerBases Base currencies of the provider's other instruments. Helps to split symbols like SHIBBUSD
+     *     (SHIB / BUSD rather than SHIBB / USD) when the provider also lists e.g. SHIBUSDT.
+     * @see #normalize(String, String)
+     */
+    public static CanonicalInstrument normalize(String provider, String symbol, Set<String> providerBases) {
+        String remaining = symbol;
+        ContractType contractType = null;
+
+        // Bitfinex prefixes trading pairs with a lowercase 't' (tBTCUSD), and marks perpetuals with F0
+        // (tBTCF0:USTF0).
+        if ("bitfinex".equals(provider) && remaining.startsWith("t")) {
+            remaining = remaining.substring(1);
+            if (remaining.contains("F0:")) {
+                remaining = remaining.replace("F0", "");
+                contractType = ContractType.PERPETUAL;
+            }
+        }
+        remaining = remaining.toUpperCase();
+
+        Matcher krakenFuturesMatcher = KRAKEN_FUTURES_SYMBOL.matcher(remaining);
+        if ("krakenFutures".equals(provider) && krakenFuturesMatcher.matches()) {
+            contractType = krakenFuturesMatcher.group(1).equals("P") ? ContractType.PERPETUAL : ContractType.FUTURE;
+            remaining = krakenFuturesMatcher.group(2);
+        }
+
+        List<String> tokens = new ArrayList<>(Arrays.asList(SEPARATOR.split(remaining)));
+        // MOVE contracts (BTC-MOVE-0625, BTC-MOVE-WK-0625) pay out the price change, not the price itself.
+        if (tokens.contains("MOVE")) {
+            return null;
+        }
+
+        // Markers at the start: FX_BTC_JPY (bitFlyer).
+        if (tokens.size() > 2 && tokens.get(0).equals("FX")) {
+            tokens.remove(0);
+            contractType = ContractType.PERPETUAL;
+        }
+        // Markers at the end: BTC-PERPETUAL, ETHUSD_PERP, BTC-USD-SWAP-LIN, BTCUSD_210625, BTC-25JUN21.
+        while (tokens.size() > 1) {
+            String last = tokens.get(tokens.size() - 1);
+            if (last.equals("PERP") || last.equals("PERPETUAL") || last.equals("SWAP")) {
+                contractType = ContractType.PERPETUAL;
+            } else if (last.equals("LIN")) {
+                // Linear - settled in the quote currency, doesn't change the canonical instrument.
+            } else if (EXPIRY_DATE.matcher(last).matches()) {
+                contractType = ContractType.FUTURE;
+            } else if (last.equals("C") || last.equals("P")) {
+                // Options (BTC-25JUN21-30000-C) are not supported.
+                return null;
+            } else {
+                break;
+            }
+            tokens.remove(tokens.size() - 1);
+        }
+
+        if (contractType == null) {
+            contractType = DEFAULT_CONTRACT_TYPES.getOrDefault(provider, ContractType.SPOT);
+        }
+
+        String base;
+        String quote;
+        if (tokens.size() == 2) {
+            base = tokens.get(0);
+            quote = tokens.get(1);
+        } else if (tokens.size() == 1) {
+            String pair = tokens.get(0);
+            Matcher krakenSpotMatcher = KRAKEN_SPOT_SYMBOL.matcher(pair);
+            String quoteSuffix = findQuoteSuffix(pair, providerBases);
+            if ("krakenSpot".equals(provider) && krakenSpotMatcher.matches()) {
+                base = krakenSpotMatcher.group(1);
+                quote = krakenSpotMatcher.group(2);
+            } else if (quoteSuffix != null) {
+                base = pair.substring(0, pair.length() - quoteSuffix.length());
+                quote = quoteSuffix;
+            } else if (contractType != ContractType.SPOT && isKnownBase(pair, providerBases)) {
+                // Derivatives named after the base currency only (BTC-PERPETUAL, BTC-PERP) are quoted in USD. Other
+                // unsplittable symbols (BTCUSDZ21) are not base currencies, so they are left unrecognized.
+                base = pair;
+                quote = "USD";
+            } else {
+                return null;
+            }
+        } else {
+            return null;
+        }
+
+        if (base.isEmpty() || quote.isEmpty()) {
+            return null;
+        }
+        return new CanonicalInstrument(
+            getCanonicalCurrency(provider, base),
+            getCanonicalCurrency(provider, quote),
+            contractType
+        );
+    }
+
+    private static String getCanonicalCurrency(String provider, String currency) {
+        if ("bitfinex".equals(provider)) {
+            currency = BITFINEX_CURRENCY_ALIASES.getOrDefault(currency, currency);
+        }
+        return CURRENCY_ALIASES.getOrDefault(currency, currency);
+    }
+
+    /**
+     * Prefers a split that leaves a known currency as the base (BATUSD is BAT / USD, BTCTUSD is BTC / TUSD), then one
+     * that leaves a base of the provider's other instruments. If no split does, takes the shortest matching quote
+     * currency, i.e. plain USD rather than TUSD or BUSD.
+     */
+    private static String findQuoteSuffix(String pair, Set<String> providerBases) {
+        String withKnownBase = null;
+        String withProviderBase = null;
+        String shortest = null;
+        for (String quote : QUOTE_CURRENCIES) {
+            if (pair.length() > quote.length() && pair.endsWith(quote)) {
+                String base = pair.substring(0, pair.length() - quote.length());
+                String canonicalBase = CURRENCY_ALIASES.getOrDefault(base, base);
+                if (
+                    (KNOWN_BASES.contains(canonicalBase) || QUOTE_CURRENCIES.contains(canonicalBase)) &&
+                    (withKnownBase == null || quote.length() > withKnownBase.length())
+                ) {
+                    withKnownBase = quote;
+                }
+                if (
+                    providerBases.contains(canonicalBase) &&
+                    (withProviderBase == null || quote.length() > withProviderBase.length())
+                ) {
+                    withProviderBase = quote;
+                }
+                if (shortest == null || quote.length() < shortest.length()) {
+                    shortest = quote;
+                }
+            }
+        }
+        if (withKnownBase != null) {
+            return withKnownBase;
+        }
+        return withProviderBase != null ? withProviderBase : shortest;
+    }
+
+    private static boolean isKnownBase(String currency, Set<String> providerBases) {
+        String canonicalCurrency = CURRENCY_ALIASES.getOrDefault(currency, currency);
+        return (
+            KNOWN_BASES.contains(canonicalCurrency) ||
+            QUOTE_CURRENCIES.contains(canonicalCurrency) ||
+            providerBases.contains(canonicalCurrency)
+        );
+    }
+
+    private static List<VenueInstrument> readInstruments(
+        String provider,
+        Layer1ApiProvider layer1ApiProvider,
+        List<String> unrecognizedSymbols
+    ) {
+        Layer1ApiProviderSupportedFeatures supportedFeatures = layer1ApiProvider.getSupportedFeatures();
+
+        // A first pass collects the base currencies of the provider, which the second pass uses to split symbols
+        // that could end with several quote currencies.
+        Set<String> providerBases = new HashSet<>();
+        for (SubscribeInfo instrument : supportedFeatures.knownInstruments) {
+            CanonicalInstrument canonicalInstrument = normalize(provider, instrument.symbol);
+            if (canonicalInstrument != null) {
+                providerBases.add(canonicalInstrument.base);
+            }
+        }
+
+        List<VenueInstrument> instruments = new ArrayList<>();
+        for (SubscribeInfo instrument : supportedFeatures.knownInstruments) {
+            CanonicalInstrument canonicalInstrument = normalize(provider, instrument.symbol, providerBases);
+            if (canonicalInstrument == null) {
+                unrecognizedSymbols.add(instrument.symbol);
+                continue;
+            }
+
+            DefaultAndList<Double> pips = supportedFeatures.pipsFunction.apply(instrument);
+            double minPip = pips.valueOptions.stream().min(Double::compareTo).get();
+            // Size multiplier is simply an inverse of the size increment.
+            DefaultAndList<Double> sizes = supportedFeatures.sizeMultiplierFunction.apply(instrument);
+            double minSizeIncrement = 1 / sizes.valueOptions.stream().max(Double::compareTo).get();
+
+            instruments.add(new VenueInstrument(provider, canonicalInstrument, instrument, minPip, minSizeIncrement));
+        }
+        return instruments;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
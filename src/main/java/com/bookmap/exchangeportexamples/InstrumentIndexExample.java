@@ -0,0 +1,105 @@
+package com.bookmap.exchangeportexamples;
+
+import com.bookmap.exchangeport.ConnectivityClient;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.Layer1ApiProvider;
+import velox.api.layer1.data.MarketMode;
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * This example demonstrates how to subscribe to the same instrument on several exchanges, without looking up how
+ * each exchange names it.
+ *
+ * See MarketDataMultipleExchangesExample for how this is done by hand.
+ */
+public class InstrumentIndexExample {
+
+    /**
+     * Where the index is cached between runs. Instruments don't change often, so one day is fine.
+     */
+    private static final Path INDEX_CACHE_FILE = Paths.get("instrument-index.tsv");
+    private static final Duration INDEX_MAX_AGE = Duration.ofDays(1);
+
+    private final ConnectivityClient client;
+
+    public InstrumentIndexExample() {
+        client = new ConnectivityClient(Settings.EXCHANGEPORT_TOKEN);
+    }
+
+    public void run() throws Exception {
+        // The keys must be the names of the ConnectivityClient methods, they tell the index how to read the symbols.
+        Map<String, Layer1ApiProvider> providers = new LinkedHashMap<>();
+        providers.put("krakenFutures", client.krakenFutures(false));
+        providers.put("binanceFutures", client.binanceFutures(false, "100 milliseconds"));
+
+        // On the first run this asks all providers for their instruments (in parallel), later runs just read the file.
+        InstrumentIndex index = InstrumentIndex.loadOrBuild(
+            INDEX_CACHE_FILE,
+            INDEX_MAX_AGE,
+            providers.keySet(),
+            () -> providers
+        );
+
+        InstrumentIndex.CanonicalInstrument ethUsdPerpetual = new InstrumentIndex.CanonicalInstrument(
+            "ETH",
+            "USD",
+            InstrumentIndex.ContractType.PERPETUAL
+        );
+
+        // Provider name -> the instruments, on all exchanges that have it.
+        Map<String, List<InstrumentIndex.VenueInstrument>> instruments = index.get(ethUsdPerpetual);
+        System.out.println(ethUsdPerpetual + " is available on:");
+        for (List<InstrumentIndex.VenueInstrument> providerInstruments : instruments.values()) {
+            for (InstrumentIndex.VenueInstrument instrument : providerInstruments) {
+                System.out.println("\t" + instrument);
+            }
+        }
+
+        for (List<InstrumentIndex.VenueInstrument> providerInstruments : instruments.values()) {
+            // An exchange may list several instruments for it (Kraken Futures has both the inverse PI_ETHUSD and the
+            // linear PF_ETHUSD), just take the first one listed.
+            InstrumentIndex.VenueInstrument instrument = providerInstruments.get(0);
+            Layer1ApiProvider provider = providers.get(instrument.provider);
+            // Alias names may be the same on different exchanges, so use one listener per provider to know where
+            // the events come from.
+            provider.addListener(
+                new Layer1ApiDataListener() {
+                    @Override
+                    public void onTrade(String alias, double priceLevel, int sizeLevel, TradeInfo tradeInfo) {
+                        String buyOrSell = tradeInfo.isBidAggressor ? "BUY" : "SELL";
+                        // The subscription below uses the instrument pip and size increment.
+                        double price = priceLevel * instrument.pip;
+                        double size = sizeLevel * instrument.sizeIncrement;
+                        System.out.printf(
+                            "onTrade: provider=%s alias=%s buyOrSellAggressor=%s price=%s size=%s%n",
+                            instrument.provider,
+                            alias,
+                            buyOrSell,
+                            price,
+                            size
+                        );
+                    }
+
+                    @Override
+                    public void onDepth(String alias, boolean isBid, int priceLevel, int sizeLevel) {}
+
+                    @Override
+                    public void onMarketMode(String alias, MarketMode marketMode) {
+                        // Not used in blockchain exchanges.
+                    }
+                }
+            );
+            provider.subscribe(instrument.createSubscribeInfo());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new InstrumentIndexExample().run();
+    }
+}
@@ -32,6 +32,7 @@ public class MarketDataMultipleExchangesExample {
 
         // Let's say we are interested in the ETH / USD perpetual future instruments from these two exchanges. First,
         // we find the names: PI_ETHUSD on Kraken Futures, and ETHUSD_PERP on Binance Futures.
+        // (See InstrumentIndexExample for how to look these names up automatically.)
 
         // First, we must specify the pip and the size increment to which the data is going to be rounded.
         // (pip = price increment)
@@ -0,0 +1,488 @@
+package com.bookmap.exchangeportexamples;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import velox.api.layer1.Layer1ApiTradingListener;
+import velox.api.layer1.data.BalanceInfo;
+import velox.api.layer1.data.ExecutionInfo;
+import velox.api.layer1.data.OrderInfoUpdate;
+import velox.api.layer1.data.OrderStatus;
+import velox.api.layer1.data.StatusInfo;
+
+/**
+ * Folds the trading callbacks of several providers into positions, P&L and balances, normalized to the base currency
+ * (usually USD) using the rates from {@link BalanceInfo}.
+ *
+ * Each provider calls its listener on its own thread. Updates are serialized and published as an immutable
+ * {@link Snapshot}, so reading ({@link #getSnapshot()}) is a single volatile read: it never blocks, never waits for
+ * writers, and always returns a consistent view across all providers. This makes it suitable for pre-trade checks
+ * that run thousands of times per second.
+ *
+ * Positions come from {@link StatusInfo}. Executions received after the latest status are applied on top of it, so
+ * that exposure is up to date before the provider sends the next status. Executions of an instrument the provider
+ * hasn't sent any status for yet still show up, as a position without P&L (see {@link InstrumentPosition#hasStatus}).
+ *
+ * An execution may arrive after the final update of its order (filled, cancelled), but is assumed to arrive before
+ * the next status of the alias, which already includes it. {@link ShardedDispatcher} relies on the same.
+ */
+public class PositionAggregator {
+
+    /**
+     * Position of a single instrument on a single provider.
+     */
+    public static final class InstrumentPosition {
+
+        public final String provider;
+        public final String alias;
+        /**
+         * False if the provider hasn't sent a status for this alias yet, and the position is summed up from the
+         * executions alone. The average price, the P&L and the currency are not known then (NaN / null).
+         */
+        public final boolean hasStatus;
+        /**
+         * Currency of the P&L, as reported by the provider. May be null.
+         */
+        public final String currency;
+        /**
+         * Positive for long, negative for short. Includes executions received after the latest status.
+         */
+        public final double position;
+        public final double averagePrice;
+        public final double realizedPnl;
+        public final double unrealizedPnl;
+        /**
+         * NaN if the rate of the currency is not known.
+         */
+        public final double realizedPnlInBase;
+        /**
+         * NaN if the rate of the currency is not known.
+         */
+        public final double unrealizedPnlInBase;
+        /**
+         * Summed size of working buy orders. Without a status, the unfilled size of the orders known so far.
+         */
+        public final double workingBuys;
+        /**
+         * Summed size of working sell orders. Without a status, the unfilled size of the orders known so far.
+         */
+        public final double workingSells;
+
+        private InstrumentPosition(
+            String provider,
+            String alias,
+            boolean hasStatus,
+            String currency,
+            double position,
+            double averagePrice,
+            double realizedPnl,
+            double unrealizedPnl,
+            double rateToBase,
+            double workingBuys,
+            double workingSells
+        ) {
+            this.provider = provider;
+            this.alias = alias;
+            this.hasStatus = hasStatus;
+            this.currency = currency;
+            this.position = position;
+            this.averagePrice = averagePrice;
+            this.realizedPnl = realizedPnl;
+            this.unrealizedPnl = unrealizedPnl;
+            this.realizedPnlInBase = realizedPnl * rateToBase;
+            this.unrealizedPnlInBase = unrealizedPnl * rateToBase;
+            this.workingBuys = workingBuys;
+            this.workingSells = workingSells;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%s %s: position=%s averagePrice=%s realizedPnl=%s unrealizedPnl=%s %s workingBuys=%s workingSells=%s",
+                provider,
+                alias,
+                position,
+                averagePrice,
+                realizedPnl,
+                unrealizedPnl,
+                currency,
+                workingBuys,
+                workingSells
+            );
+        }
+    }
+
+    /**
+     * Balance in a single currency on a single provider.
+     */
+    public static final class CurrencyBalance {
+
+        public final String provider;
+        public final String currency;
+        public final double balance;
+        public final double realizedPnl;
+        public final double unrealizedPnl;
+        /**
+         * NaN if the provider didn't report it.
+         */
+        public final double rateToBase;
+        /**
+         * NaN if the rate is not known.
+         */
+        public final double balanceInBase;
+
+        private CurrencyBalance(String provider, BalanceInfo.BalanceInCurrency balance) {
+            this.provider = provider;
+            this.currency = balance.currency;
+            this.balance = balance.balance;
+            this.realizedPnl = balance.realizedPnl;
+            this.unrealizedPnl = balance.unrealizedPnl;
+            this.rateToBase = balance.rateToBase == null ? Double.NaN : balance.rateToBase;
+            this.balanceInBase = this.balance * rateToBase;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%s %s: balance=%s realizedPnl=%s unrealizedPnl=%s rateToBase=%s",
+                provider,
+                currency,
+                balance,
+                realizedPnl,
+                unrealizedPnl,
+                rateToBase
+            );
+        }
+    }
+
+    /**
+     * A consistent, immutable view of all providers at one moment.
+     */
+    public static final class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(0, Collections.emptyMap(), Collections.emptyMap());
+
+        /**
+         * Incremented with every update, useful to tell whether anything changed since the previous read.
+         */
+        public final long version;
+        /**
+         * Provider -> alias -> position.
+         */
+        private final Map<String, Map<String, InstrumentPosition>> positions;
+        /**
+         * Provider -> currency -> balance.
+         */
+        private final Map<String, Map<String, CurrencyBalance>> balances;
+
+        /**
+         * Sums over all providers, in the base currency. Values that can't be converted (no rate known) are left out,
+         * see {@link #hasUnknownRates}. So are positions without a status, since their P&L is not known yet.
+         */
+        public final double balanceInBase;
+        public final double realizedPnlInBase;
+        public final double unrealizedPnlInBase;
+        public final boolean hasUnknownRates;
+
+        private Snapshot(
+            long version,
+            Map<String, Map<String, InstrumentPosition>> positions,
+            Map<String, Map<String, CurrencyBalance>> balances
+        ) {
+            this.version = version;
+            this.positions = positions;
+            this.balances = balances;
+
+            double balanceInBase = 0;
+            double realizedPnlInBase = 0;
+            double unrealizedPnlInBase = 0;
+            boolean hasUnknownRates = false;
+            for (Map<String, CurrencyBalance> providerBalances : balances.values()) {
+                for (CurrencyBalance balance : providerBalances.values()) {
+                    if (Double.isNaN(balance.balanceInBase)) {
+                        hasUnknownRates = true;
+                    } else {
+                        balanceInBase += balance.balanceInBase;
+                    }
+                }
+            }
+            for (Map<String, InstrumentPosition> providerPositions : positions.values()) {
+                for (InstrumentPosition position : providerPositions.values()) {
+                    if (!position.hasStatus) {
+                        continue;
+                    }
+                    if (Double.isNaN(position.realizedPnlInBase) || Double.isNaN(position.unrealizedPnlInBase)) {
+                        hasUnknownRates = true;
+                    } else {
+                        realizedPnlInBase += position.realizedPnlInBase;
+                        unrealizedPnlInBase += position.unrealizedPnlInBase;
+                    }
+                }
+            }
+            this.balanceInBase = balanceInBase;
+            this.realizedPnlInBase = realizedPnlInBase;
+            this.unrealizedPnlInBase = unrealizedPnlInBase;
+            this.hasUnknownRates = hasUnknownRates;
+        }
+
+        /**
+         * @return The position, or null if the provider hasn't reported any status or execution for this alias.
+         */
+        public InstrumentPosition getPosition(String provider, String alias) {
+            Map<String, InstrumentPosition> providerPositions = positions.get(provider);
+            return providerPositions == null ? null : providerPositions.get(alias);
+        }
+
+        public List<InstrumentPosition> getPositions() {
+            List<InstrumentPosition> result = new ArrayList<>();
+            for (Map<String, InstrumentPosition> providerPositions : positions.values()) {
+                result.addAll(providerPositions.values());
+            }
+            return result;
+        }
+
+        public List<CurrencyBalance> getBalances() {
+            List<CurrencyBalance> result = new ArrayList<>();
+            for (Map<String, CurrencyBalance> providerBalances : balances.values()) {
+                result.addAll(providerBalances.values());
+            }
+            return result;
+        }
+
+        /**
+         * @return Balance in the currency, summed over all providers.
+         */
+        public double getBalance(String currency) {
+            double balance = 0;
+            for (Map<String, CurrencyBalance> providerBalances : balances.values()) {
+                CurrencyBalance providerBalance = providerBalances.get(currency);
+                if (providerBalance != null) {
+                    balance += providerBalance.balance;
+                }
+            }
+            return balance;
+        }
+    }
+
+    /**
+     * Order ID -> order, per provider. Needed because executions only carry the order ID. Orders that are done are
+     * kept until the next status of their alias, since their executions may still arrive.
+     */
+    private final Map<String, Map<String, OrderInfoUpdate>> orders = new HashMap<>();
+    /**
+     * Provider -> alias -> latest status.
+     */
+    private final Map<String, Map<String, StatusInfo>> statuses = new HashMap<>();
+    /**
+     * Provider -> alias -> signed size executed since the latest status.
+     */
+    private final Map<String, Map<String, Double>> executedSinceStatus = new HashMap<>();
+    /**
+     * Provider -> currency -> latest balance.
+     */
+    private final Map<String, Map<String, CurrencyBalance>> balances = new HashMap<>();
+    private long version;
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+    /**
+     * Never blocks. The returned snapshot doesn't change, call this again to see newer updates.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Creates a listener to be added to a provider. Use a separate listener (with a distinct name) for each provider.
+     *
+     * @param provider Name under which the positions and balances of the provider appear in the snapshots.
+     */
+    public Layer1ApiTradingListener createListener(String provider) {
+        return new Layer1ApiTradingListener() {
+            @Override
+            public void onOrderUpdated(OrderInfoUpdate orderInfoUpdate) {
+                PositionAggregator.this.onOrderUpdated(provider, orderInfoUpdate);
+            }
+
+            @Override
+            public void onOrderExecuted(ExecutionInfo executionInfo) {
+                PositionAggregator.this.onOrderExecuted(provider, executionInfo);
+            }
+
+            @Override
+            public void onStatus(StatusInfo statusInfo) {
+                PositionAggregator.this.onStatus(provider, statusInfo);
+            }
+
+            @Override
+            public void onBalance(BalanceInfo balanceInfo) {
+                PositionAggregator.this.onBalance(provider, balanceInfo);
+            }
+        };
+    }
+
+    private synchronized void onOrderUpdated(String provider, OrderInfoUpdate orderInfoUpdate) {
+        orders.computeIfAbsent(provider, p -> new HashMap<>()).put(orderInfoUpdate.orderId, orderInfoUpdate);
+        // Working buys/sells are taken from the status, so there's nothing to publish here.
+    }
+
+    private synchronized void onOrderExecuted(String provider, ExecutionInfo executionInfo) {
+        OrderInfoUpdate order = orders.getOrDefault(provider, Collections.emptyMap()).get(executionInfo.orderId);
+        if (order == null) {
+            return;
+        }
+        double executedSize = executionInfo.size;
+        executedSinceStatus
+            .computeIfAbsent(provider, p -> new HashMap<>())
+            .merge(order.instrumentAlias, order.isBuy ? executedSize : -executedSize, Double::sum);
+        publish();
+    }
+
+    private synchronized void onStatus(String provider, StatusInfo statusInfo) {
+        statuses.computeIfAbsent(provider, p -> new HashMap<>()).put(statusInfo.instrumentAlias, statusInfo);
+        // The status already contains everything executed so far, so orders that are done aren't needed any more.
+        executedSinceStatus.getOrDefault(provider, Collections.emptyMap()).remove(statusInfo.instrumentAlias);
+        orders
+            .getOrDefault(provider, Collections.emptyMap())
+            .values()
+            .removeIf(order -> isDone(order.status) && order.instrumentAlias.equals(statusInfo.instrumentAlias));
+        publish();
+    }
+
+    private synchronized void onBalance(String provider, BalanceInfo balanceInfo) {
+        Map<String, CurrencyBalance> providerBalances = balances.computeIfAbsent(provider, p -> new HashMap<>());
+        for (BalanceInfo.BalanceInCurrency balance : balanceInfo.balancesInCurrency) {
+            providerBalances.put(balance.currency, new CurrencyBalance(provider, balance));
+        }
+        publish();
+    }
+
+    /**
+     * Builds a new snapshot from the current state. Must be called while holding the lock.
+     */
+    private void publish() {
+        Map<String, Map<String, InstrumentPosition>> positionsSnapshot = new HashMap<>();
+        for (Map.Entry<String, Map<String, StatusInfo>> providerStatuses : statuses.entrySet()) {
+            String provider = providerStatuses.getKey();
+            Map<String, Double> providerExecuted = executedSinceStatus.getOrDefault(provider, Collections.emptyMap());
+
+            Map<String, InstrumentPosition> providerPositions = new HashMap<>();
+            for (StatusInfo status : providerStatuses.getValue().values()) {
+                double position = status.position + providerExecuted.getOrDefault(status.instrumentAlias, 0.);
+                providerPositions.put(
+                    status.instrumentAlias,
+                    new InstrumentPosition(
+                        provider,
+                        status.instrumentAlias,
+                        true,
+                        status.currency,
+                        position,
+                        status.averagePrice,
+                        status.realizedPnl,
+                        status.unrealizedPnl,
+                        getRateToBase(provider, status.currency),
+                        status.workingBuys,
+                        status.workingSells
+                    )
+                );
+            }
+            positionsSnapshot.put(provider, Collections.unmodifiableMap(providerPositions));
+        }
+
+        // Executions of aliases that have no status yet (e.g. the first fill on a new instrument).
+        for (Map.Entry<String, Map<String, Double>> providerExecuted : executedSinceStatus.entrySet()) {
+            String provider = providerExecuted.getKey();
+            Map<String, StatusInfo> providerStatuses = statuses.getOrDefault(provider, Collections.emptyMap());
+            Map<String, InstrumentPosition> providerPositions = null;
+            for (Map.Entry<String, Double> executed : providerExecuted.getValue().entrySet()) {
+                String alias = executed.getKey();
+                if (providerStatuses.containsKey(alias)) {
+                    continue;
+                }
+                if (providerPositions == null) {
+                    providerPositions = new HashMap<>(positionsSnapshot.getOrDefault(provider, Collections.emptyMap()));
+                }
+                providerPositions.put(
+                    alias,
+                    new InstrumentPosition(
+                        provider,
+                        alias,
+                        false,
+                        null,
+                        executed.getValue(),
+                        Double.NaN,
+                        Double.NaN,
+                        Double.NaN,
+                        Double.NaN,
+                        getUnfilledSize(provider, alias, true),
+                        getUnfilledSize(provider, alias, false)
+                    )
+                );
+            }
+            if (providerPositions != null) {
+                positionsSnapshot.put(provider, Collections.unmodifiableMap(providerPositions));
+            }
+        }
+
+        Map<String, Map<String, CurrencyBalance>> balancesSnapshot = new HashMap<>();
+        for (Map.Entry<String, Map<String, CurrencyBalance>> providerBalances : balances.entrySet()) {
+            balancesSnapshot.put(
+                providerBalances.getKey(),
+                Collections.unmodifiableMap(new HashMap<>(providerBalances.getValue()))
+            );
+        }
+
+        snapshot.set(new Snapshot(++version, positionsSnapshot, balancesSnapshot));
+    }
+
+    /**
+     * @return Summed unfilled size of the known working orders of the alias on one side. Must be called while holding
+     *     the lock.
+     */
+    private double getUnfilledSize(String provider, String alias, boolean isBuy) {
+        double unfilledSize = 0;
+        for (OrderInfoUpdate order : orders.getOrDefault(provider, Collections.emptyMap()).values()) {
+            if (order.isBuy == isBuy && alias.equals(order.instrumentAlias) && !isDone(order.status)) {
+                unfilledSize += order.unfilled;
+            }
+        }
+        return unfilledSize;
+    }
+
+    private static boolean isDone(OrderStatus status) {
+        switch (status) {
+            case FILLED:
+            case CANCELLED:
+            case REJECTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Prefers the rate reported by the provider itself, falls back to the rate reported by any other provider.
+     * Must be called while holding the lock.
+     *
+     * @return NaN if no provider reported a rate for this currency.
+     */
+    private double getRateToBase(String provider, String currency) {
+        if (currency == null) {
+            return Double.NaN;
+        }
+        CurrencyBalance ownBalance = balances.getOrDefault(provider, Collections.emptyMap()).get(currency);
+        if (ownBalance != null && !Double.isNaN(ownBalance.rateToBase)) {
+            return ownBalance.rateToBase;
+        }
+        for (Map<String, CurrencyBalance> providerBalances : balances.values()) {
+            CurrencyBalance balance = providerBalances.get(currency);
+            if (balance != null && !Double.isNaN(balance.rateToBase)) {
+                return balance.rateToBase;
+            }
+        }
+        return Double.NaN;
+    }
+}
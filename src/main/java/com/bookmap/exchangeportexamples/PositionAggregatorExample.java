@@ -0,0 +1,87 @@
+package com.bookmap.exchangeportexamples;
+
+import com.bookmap.exchangeport.ConnectivityClient;
+import velox.api.layer1.Layer1ApiProvider;
+import velox.api.layer1.data.SubscribeInfoCrypto;
+
+/**
+ * This example demonstrates how to combine positions, P&L and balances of several providers into one view, and how
+ * to use it for a pre-trade risk check.
+ *
+ * Every provider reports its trading data on its own thread. {@link PositionAggregator} collects it and publishes
+ * consistent snapshots, which can be read from any thread without locking.
+ */
+public class PositionAggregatorExample {
+
+    private static final String ALIAS = "BTC-PERPETUAL";
+
+    /**
+     * Largest absolute position we allow for {@link #ALIAS}.
+     */
+    private static final double MAX_POSITION = 1000;
+
+    private final ConnectivityClient client;
+    private final PositionAggregator positionAggregator = new PositionAggregator();
+
+    public PositionAggregatorExample() {
+        client = new ConnectivityClient(Settings.EXCHANGEPORT_TOKEN);
+    }
+
+    public void run() throws Exception {
+        Layer1ApiProvider deribitProvider = client.deribit(
+            true,
+            Settings.DERIBIT_TESTNET_API_KEY,
+            Settings.DERIBIT_TESTNET_API_SECRET
+        );
+        // The name passed here is how the provider is identified in the snapshots. When connecting to more
+        // providers, create one listener for each of them.
+        deribitProvider.addListener(positionAggregator.createListener("deribit"));
+
+        deribitProvider.subscribe(new SubscribeInfoCrypto(ALIAS, null, null, 0.5, 0.1));
+
+        for (int i = 0; i < 30; i++) {
+            Thread.sleep(1000);
+
+            PositionAggregator.Snapshot snapshot = positionAggregator.getSnapshot();
+            System.out.printf(
+                "Snapshot version %s: balance=%s realizedPnl=%s unrealizedPnl=%s (in base currency)%s%n",
+                snapshot.version,
+                snapshot.balanceInBase,
+                snapshot.realizedPnlInBase,
+                snapshot.unrealizedPnlInBase,
+                snapshot.hasUnknownRates ? ", some currencies have no rate to base" : ""
+            );
+            for (PositionAggregator.InstrumentPosition position : snapshot.getPositions()) {
+                System.out.println("\t" + position);
+            }
+            for (PositionAggregator.CurrencyBalance balance : snapshot.getBalances()) {
+                System.out.println("\t" + balance);
+            }
+
+            System.out.println("Can buy 100 more: " + isOrderAllowed("deribit", ALIAS, true, 100));
+        }
+
+        deribitProvider.close();
+    }
+
+    /**
+     * A pre-trade check. Takes a snapshot once, so that all the values it looks at are consistent with each other.
+     */
+    private boolean isOrderAllowed(String provider, String alias, boolean isBuy, double size) {
+        PositionAggregator.InstrumentPosition position = positionAggregator.getSnapshot().getPosition(provider, alias);
+        if (position == null) {
+            // Nothing has been traded on this instrument yet. Executions show up even before the first status, so
+            // a fill can't be missed here.
+            return size <= MAX_POSITION;
+        }
+        // Assume that all of our working orders on the same side get filled as well.
+        double worstCasePosition = isBuy
+            ? position.position + position.workingBuys + size
+            : position.position - position.workingSells - size;
+        return Math.abs(worstCasePosition) <= MAX_POSITION;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new PositionAggregatorExample().run();
+    }
+}
@@ -0,0 +1,651 @@
+package com.bookmap.exchangeportexamples;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.Layer1ApiTradingListener;
+import velox.api.layer1.data.BalanceInfo;
+import velox.api.layer1.data.ExecutionInfo;
+import velox.api.layer1.data.MarketMode;
+import velox.api.layer1.data.OrderInfoUpdate;
+import velox.api.layer1.data.OrderStatus;
+import velox.api.layer1.data.StatusInfo;
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * Spreads the work of a provider over several threads, while keeping the events of each alias in order.
+ *
+ * A provider calls all listeners on a single thread, so with many instruments all the strategy work ends up on one
+ * core. This dispatcher is added to the provider instead of your listeners. It assigns every alias to one of N shards
+ * (by a stable hash of the alias), and each shard calls your listeners on its own worker thread. Events of one alias
+ * are always delivered in the order the provider sent them, events of different aliases run in parallel.
+ *
+ * Your listeners are therefore called from several threads at once (but never concurrently for the same alias).
+ *
+ * Trading events are routed by the alias of the order. Balance updates and executions of unknown orders don't belong
+ * to any alias, they are delivered on the first shard. An execution may arrive after the final update of its order,
+ * but is assumed to arrive before the next status of the alias (the same as {@link PositionAggregator} assumes).
+ *
+ * When a few aliases are much busier than the rest, {@link #rebalance()} reassigns aliases so that the shards get
+ * a similar number of events. Moving an alias doesn't break its ordering: events already queued on the old shard
+ * are delivered before any event on the new one.
+ */
+public class ShardedDispatcher implements Layer1ApiDataListener, Layer1ApiTradingListener, AutoCloseable {
+
+    /**
+     * Load of a single shard at the time of the call.
+     */
+    public static final class ShardLoad {
+
+        public final int shard;
+        public final int aliases;
+        /**
+         * Events waiting to be processed.
+         */
+        public final int queuedEvents;
+        public final long processedEvents;
+        /**
+         * Total time the worker spent in your listeners.
+         */
+        public final long busyNanos;
+
+        private ShardLoad(int shard, int aliases, int queuedEvents, long processedEvents, long busyNanos) {
+            this.shard = shard;
+            this.aliases = aliases;
+            this.queuedEvents = queuedEvents;
+            this.processedEvents = processedEvents;
+            this.busyNanos = busyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "shard=%s aliases=%s queued=%s processed=%s busy=%sms",
+                shard,
+                aliases,
+                queuedEvents,
+                processedEvents,
+                busyNanos / 1_000_000
+            );
+        }
+    }
+
+    private static final int TRADE = 0;
+    private static final int DEPTH = 1;
+    private static final int MARKET_MODE = 2;
+    private static final int TASK = 3;
+
+    /**
+     * A queue slot. Slots are allocated once and reused, so market data events don't allocate.
+     */
+    private static class Event {
+
+        private int kind;
+        private String alias;
+        private boolean isBid;
+        private double priceLevel;
+        private int sizeLevel;
+        private TradeInfo tradeInfo;
+        private MarketMode marketMode;
+        private Runnable task;
+    }
+
+    /**
+     * Where the events of an alias go. Guarded by its own monitor.
+     */
+    private static class AliasRoute {
+
+        private final String alias;
+        private Shard shard;
+        /**
+         * Non-null while the alias is being moved to another shard. Events received meanwhile wait here, up to the
+         * shard capacity.
+         */
+        private ArrayDeque<Runnable> pendingEvents;
+        private long events;
+        private long eventsAtLastRebalance;
+
+        private AliasRoute(String alias, Shard shard) {
+            this.alias = alias;
+            this.shard = shard;
+        }
+    }
+
+    private class Shard {
+
+        private final int index;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+
+        // The fields below are guarded by 'lock'.
+        private final Event[] queue;
+        private long head;
+        private long tail;
+        /**
+         * Tasks that take priority over the queue. Unbounded, so that adding to it never blocks.
+         */
+        private final ArrayDeque<Runnable> controlTasks = new ArrayDeque<>();
+        private boolean isClosed;
+
+        // Written by the worker thread only.
+        private volatile long processedEvents;
+        private volatile long busyNanos;
+
+        private Shard(int index, int capacity) {
+            this.index = index;
+            queue = new Event[capacity];
+            for (int i = 0; i < capacity; i++) {
+                queue[i] = new Event();
+            }
+        }
+
+        /**
+         * Blocks while the queue is full.
+         */
+        private void offer(
+            int kind,
+            String alias,
+            boolean isBid,
+            double priceLevel,
+            int sizeLevel,
+            TradeInfo tradeInfo,
+            MarketMode marketMode,
+            Runnable task
+        ) {
+            lock.lock();
+            try {
+                while (tail - head == queue.length && !isClosed) {
+                    notFull.awaitUninterruptibly();
+                }
+                if (isClosed) {
+                    return;
+                }
+                Event event = queue[(int) (tail % queue.length)];
+                event.kind = kind;
+                event.alias = alias;
+                event.isBid = isBid;
+                event.priceLevel = priceLevel;
+                event.sizeLevel = sizeLevel;
+                event.tradeInfo = tradeInfo;
+                event.marketMode = marketMode;
+                event.task = task;
+                tail++;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void offerTask(Runnable task) {
+            offer(TASK, null, false, 0, 0, null, null, task);
+        }
+
+        /**
+         * Runs the task before anything that is currently queued. Never blocks.
+         */
+        private void addControlTask(Runnable task) {
+            lock.lock();
+            try {
+                controlTasks.add(task);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int getQueuedEvents() {
+            lock.lock();
+            try {
+                return (int) (tail - head) + controlTasks.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void close() {
+            lock.lock();
+            try {
+                isClosed = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void processEvents() {
+            while (true) {
+                int kind;
+                String alias;
+                boolean isBid;
+                double priceLevel;
+                int sizeLevel;
+                TradeInfo tradeInfo;
+                MarketMode marketMode;
+                Runnable task;
+
+                lock.lock();
+                try {
+                    while (head == tail && controlTasks.isEmpty() && !isClosed) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    if (isClosed) {
+                        return;
+                    }
+
+                    if (!controlTasks.isEmpty()) {
+                        kind = TASK;
+                        alias = null;
+                        isBid = false;
+                        priceLevel = 0;
+                        sizeLevel = 0;
+                        tradeInfo = null;
+                        marketMode = null;
+                        task = controlTasks.poll();
+                    } else {
+                        // Copy the event out of its slot, since the slot may be reused as soon as the lock is released.
+                        Event event = queue[(int) (head % queue.length)];
+                        kind = event.kind;
+                        alias = event.alias;
+                        isBid = event.isBid;
+                        priceLevel = event.priceLevel;
+                        sizeLevel = event.sizeLevel;
+                        tradeInfo = event.tradeInfo;
+                        marketMode = event.marketMode;
+                        task = event.task;
+                        event.alias = null;
+                        event.tradeInfo = null;
+                        event.marketMode = null;
+                        event.task = null;
+                        head++;
+                        notFull.signal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                long startNanos = System.nanoTime();
+                try {
+                    switch (kind) {
+                        case TRADE:
+                            dataListener.onTrade(alias, priceLevel, sizeLevel, tradeInfo);
+                            break;
+                        case DEPTH:
+                            dataListener.onDepth(alias, isBid, (int) priceLevel, sizeLevel);
+                            break;
+                        case MARKET_MODE:
+                            dataListener.onMarketMode(alias, marketMode);
+                            break;
+                        case TASK:
+                            task.run();
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    // Keep processing - one faulty event shouldn't stop the whole shard.
+                    e.printStackTrace();
+                }
+                busyNanos += System.nanoTime() - startNanos;
+                processedEvents++;
+            }
+        }
+    }
+
+    private final Layer1ApiDataListener dataListener;
+    private final Layer1ApiTradingListener tradingListener;
+    private final Shard[] shards;
+    private final int shardCapacity;
+    private volatile boolean isClosed;
+
+    private final Map<String, AliasRoute> routes = new ConcurrentHashMap<>();
+    /**
+     * Order ID -> alias, needed to route executions, which only carry the order ID.
+     */
+    private final Map<String, String> orderAliases = new ConcurrentHashMap<>();
+    /**
+     * Alias -> IDs of its orders that are done. They stay in 'orderAliases' until the next status of the alias.
+     */
+    private final Map<String, List<String>> doneOrders = new ConcurrentHashMap<>();
+
+    /**
+     * @param name Used to name the worker threads.
+     * @param shardCount Number of worker threads, usually the number of cores you want to use.
+     * @param shardCapacity Maximum number of events queued per shard, and held back per alias while it's being moved.
+     *     The provider thread blocks when either is full.
+     * @param dataListener Receives market data. May be null.
+     * @param tradingListener Receives trading events. May be null.
+     */
+    public ShardedDispatcher(
+        String name,
+        int shardCount,
+        int shardCapacity,
+        Layer1ApiDataListener dataListener,
+        Layer1ApiTradingListener tradingListener
+    ) {
+        if (shardCount <= 0 || shardCapacity <= 0) {
+            throw new IllegalArgumentException(
+                "Shard count and capacity must be positive, got " + shardCount + " and " + shardCapacity
+            );
+        }
+        this.dataListener = dataListener;
+        this.tradingListener = tradingListener;
+        this.shardCapacity = shardCapacity;
+
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, shardCapacity);
+        }
+        for (Shard shard : shards) {
+            Thread worker = new Thread(shard::processEvents, "sharded-" + name + "-" + shard.index);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    @Override
+    public void onTrade(String alias, double priceLevel, int sizeLevel, TradeInfo tradeInfo) {
+        if (dataListener == null) {
+            return;
+        }
+        AliasRoute route = getRoute(alias);
+        synchronized (route) {
+            route.events++;
+            awaitPendingEventsCapacity(route);
+            if (route.pendingEvents != null) {
+                route.pendingEvents.add(() -> dataListener.onTrade(alias, priceLevel, sizeLevel, tradeInfo));
+            } else {
+                route.shard.offer(TRADE, alias, false, priceLevel, sizeLevel, tradeInfo, null, null);
+            }
+        }
+    }
+
+    @Override
+    public void onDepth(String alias, boolean isBid, int priceLevel, int sizeLevel) {
+        if (dataListener == null) {
+            return;
+        }
+        AliasRoute route = getRoute(alias);
+        synchronized (route) {
+            route.events++;
+            awaitPendingEventsCapacity(route);
+            if (route.pendingEvents != null) {
+                route.pendingEvents.add(() -> dataListener.onDepth(alias, isBid, priceLevel, sizeLevel));
+            } else {
+                route.shard.offer(DEPTH, alias, isBid, priceLevel, sizeLevel, null, null, null);
+            }
+        }
+    }
+
+    @Override
+    public void onMarketMode(String alias, MarketMode marketMode) {
+        if (dataListener == null) {
+            return;
+        }
+        dispatchTask(alias, () -> dataListener.onMarketMode(alias, marketMode));
+    }
+
+    @Override
+    public void onOrderUpdated(OrderInfoUpdate orderInfoUpdate) {
+        if (tradingListener == null) {
+            return;
+        }
+        orderAliases.put(orderInfoUpdate.orderId, orderInfoUpdate.instrumentAlias);
+        OrderStatus status = orderInfoUpdate.status;
+        if (status == OrderStatus.FILLED || status == OrderStatus.CANCELLED || status == OrderStatus.REJECTED) {
+            // Executions may still follow, so the order is only forgotten on the next status.
+            doneOrders
+                .computeIfAbsent(orderInfoUpdate.instrumentAlias, a -> new ArrayList<>())
+                .add(orderInfoUpdate.orderId);
+        }
+        dispatchTask(orderInfoUpdate.instrumentAlias, () -> tradingListener.onOrderUpdated(orderInfoUpdate));
+    }
+
+    @Override
+    public void onOrderExecuted(ExecutionInfo executionInfo) {
+        if (tradingListener == null) {
+            return;
+        }
+        String alias = orderAliases.get(executionInfo.orderId);
+        Runnable task = () -> tradingListener.onOrderExecuted(executionInfo);
+        if (alias == null) {
+            shards[0].offerTask(task);
+        } else {
+            dispatchTask(alias, task);
+        }
+    }
+
+    @Override
+    public void onStatus(StatusInfo statusInfo) {
+        if (tradingListener == null) {
+            return;
+        }
+        List<String> aliasDoneOrders = doneOrders.remove(statusInfo.instrumentAlias);
+        if (aliasDoneOrders != null) {
+            for (String orderId : aliasDoneOrders) {
+                orderAliases.remove(orderId);
+            }
+        }
+        dispatchTask(statusInfo.instrumentAlias, () -> tradingListener.onStatus(statusInfo));
+    }
+
+    @Override
+    public void onBalance(BalanceInfo balanceInfo) {
+        if (tradingListener == null) {
+            return;
+        }
+        shards[0].offerTask(() -> tradingListener.onBalance(balanceInfo));
+    }
+
+    /**
+     * @return Index of the shard the alias is currently assigned to.
+     */
+    public int getShard(String alias) {
+        AliasRoute route = getRoute(alias);
+        synchronized (route) {
+            return route.shard.index;
+        }
+    }
+
+    public List<ShardLoad> getShardLoads() {
+        int[] aliasCounts = new int[shards.length];
+        for (AliasRoute route : routes.values()) {
+            synchronized (route) {
+                aliasCounts[route.shard.index]++;
+            }
+        }
+        List<ShardLoad> loads = new ArrayList<>();
+        for (Shard shard : shards) {
+            loads.add(
+                new ShardLoad(
+                    shard.index,
+                    aliasCounts[shard.index],
+                    shard.getQueuedEvents(),
+                    shard.processedEvents,
+                    shard.busyNanos
+                )
+            );
+        }
+        return loads;
+    }
+
+    /**
+     * Moves the alias to another shard. Events already queued on the current shard are delivered first, events
+     * received meanwhile are held back until then. Once the shard capacity is held back, the provider thread blocks
+     * until the move is done.
+     *
+     * Don't call this from within your listeners, since it may block while the current shard is full.
+     *
+     * @return False if the alias is already on that shard, or a previous move of the alias hasn't finished yet.
+     */
+    public boolean moveAlias(String alias, int shardIndex) {
+        Shard target = shards[shardIndex];
+        AliasRoute route = getRoute(alias);
+        Shard source;
+        synchronized (route) {
+            if (route.shard == target || route.pendingEvents != null) {
+                return false;
+            }
+            source = route.shard;
+            route.pendingEvents = new ArrayDeque<>();
+        }
+
+        // Once the source shard gets here, it has delivered everything that was queued for the alias before the
+        // move. The held back events go to the target first, ahead of anything sent there after the switch.
+        source.offerTask(
+            () -> {
+                synchronized (route) {
+                    ArrayDeque<Runnable> pendingEvents = route.pendingEvents;
+                    target.addControlTask(
+                        () -> {
+                            for (Runnable pendingEvent : pendingEvents) {
+                                pendingEvent.run();
+                            }
+                        }
+                    );
+                    route.shard = target;
+                    route.pendingEvents = null;
+                    route.notifyAll();
+                }
+            }
+        );
+        return true;
+    }
+
+    /**
+     * Moves busy aliases away from the busiest shards, based on the events received since the previous rebalance.
+     *
+     * Each step moves one alias from the busiest shard to the least busy one, picking the alias that brings the two
+     * closest to each other. An alias is only moved if the least busy shard ends up below what the busiest one had,
+     * so a balanced layout is left alone. Aliases without recent events are never moved, and no alias is moved more
+     * than once per rebalance.
+     *
+     * Don't call this from within your listeners, see {@link #moveAlias}.
+     *
+     * @return Number of aliases that have been moved.
+     */
+    public int rebalance() {
+        long[] shardEvents = new long[shards.length];
+        Map<AliasRoute, Long> movableRoutes = new HashMap<>();
+        Map<AliasRoute, Integer> routeShards = new HashMap<>();
+        for (AliasRoute route : routes.values()) {
+            synchronized (route) {
+                long recentEvents = route.events - route.eventsAtLastRebalance;
+                route.eventsAtLastRebalance = route.events;
+                shardEvents[route.shard.index] += recentEvents;
+                // Cold aliases stay where they are, and so do aliases that are still being moved.
+                if (recentEvents > 0 && route.pendingEvents == null) {
+                    movableRoutes.put(route, recentEvents);
+                    routeShards.put(route, route.shard.index);
+                }
+            }
+        }
+
+        int moved = 0;
+        while (true) {
+            int busiest = 0;
+            int leastBusy = 0;
+            for (int i = 1; i < shards.length; i++) {
+                if (shardEvents[i] > shardEvents[busiest]) {
+                    busiest = i;
+                }
+                if (shardEvents[i] < shardEvents[leastBusy]) {
+                    leastBusy = i;
+                }
+            }
+            long difference = shardEvents[busiest] - shardEvents[leastBusy];
+
+            // An alias with at least 'difference' events would make the least busy shard as busy as the busiest one
+            // was, or busier.
+            AliasRoute bestRoute = null;
+            long bestEvents = 0;
+            for (Map.Entry<AliasRoute, Long> entry : movableRoutes.entrySet()) {
+                long recentEvents = entry.getValue();
+                if (
+                    routeShards.get(entry.getKey()) == busiest &&
+                    recentEvents < difference &&
+                    Math.abs(difference - 2 * recentEvents) < Math.abs(difference - 2 * bestEvents)
+                ) {
+                    bestRoute = entry.getKey();
+                    bestEvents = recentEvents;
+                }
+            }
+            if (bestRoute == null) {
+                return moved;
+            }
+
+            movableRoutes.remove(bestRoute);
+            if (moveAlias(bestRoute.alias, leastBusy)) {
+                shardEvents[busiest] -= bestEvents;
+                shardEvents[leastBusy] += bestEvents;
+                moved++;
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads. Events that haven't been delivered yet are discarded.
+     */
+    @Override
+    public void close() {
+        isClosed = true;
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        // A move can't finish any more, so wake up a provider thread waiting for it.
+        for (AliasRoute route : routes.values()) {
+            synchronized (route) {
+                route.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Blocks while the alias is being moved and the held back events have reached the shard capacity, the same way
+     * {@link Shard#offer} blocks while a shard is full. Must be called holding the route's monitor.
+     */
+    private void awaitPendingEventsCapacity(AliasRoute route) {
+        boolean isInterrupted = false;
+        while (route.pendingEvents != null && route.pendingEvents.size() >= shardCapacity && !isClosed) {
+            try {
+                route.wait();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatchTask(String alias, Runnable task) {
+        AliasRoute route = getRoute(alias);
+        synchronized (route) {
+            route.events++;
+            awaitPendingEventsCapacity(route);
+            if (route.pendingEvents != null) {
+                route.pendingEvents.add(task);
+            } else {
+                route.shard.offerTask(task);
+            }
+        }
+    }
+
+    private AliasRoute getRoute(String alias) {
+        AliasRoute route = routes.get(alias);
+        if (route == null) {
+            // Not using computeIfAbsent(), since a lambda referencing the shards would be allocated on every call.
+            AliasRoute newRoute = new AliasRoute(alias, shards[Math.floorMod(alias.hashCode(), shards.length)]);
+            route = routes.putIfAbsent(alias, newRoute);
+            if (route == null) {
+                route = newRoute;
+            }
+        }
+        return route;
+    }
+}
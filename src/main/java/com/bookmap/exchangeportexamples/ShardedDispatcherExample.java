@@ -0,0 +1,95 @@
+package com.bookmap.exchangeportexamples;
+
+import com.bookmap.exchangeport.ConnectivityClient;
+import java.util.Collections;
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.Layer1ApiProvider;
+import velox.api.layer1.data.DefaultAndList;
+import velox.api.layer1.data.Layer1ApiProviderSupportedFeatures;
+import velox.api.layer1.data.MarketMode;
+import velox.api.layer1.data.SubscribeInfo;
+import velox.api.layer1.data.SubscribeInfoCrypto;
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * This example demonstrates how to process many instruments of one provider in parallel.
+ *
+ * The provider calls the listeners on a single thread. {@link ShardedDispatcher} hands the events of each instrument
+ * to one of several worker threads, so the work of different instruments runs on different cores, while the events
+ * of each single instrument still arrive in order.
+ */
+public class ShardedDispatcherExample {
+
+    private static final int SUBSCRIBED_INSTRUMENTS = 50;
+
+    private final ConnectivityClient client;
+
+    public ShardedDispatcherExample() {
+        client = new ConnectivityClient(Settings.EXCHANGEPORT_TOKEN);
+    }
+
+    public void run() throws Exception {
+        Layer1ApiProvider binanceFuturesProvider = client.binanceFutures(false, "100 milliseconds");
+
+        // Your strategy. Since it's called from several threads, any state shared between instruments must be
+        // thread-safe. State of a single instrument is only ever accessed by one thread at a time.
+        Layer1ApiDataListener strategy = new Layer1ApiDataListener() {
+            @Override
+            public void onTrade(String alias, double priceLevel, int sizeLevel, TradeInfo tradeInfo) {}
+
+            @Override
+            public void onDepth(String alias, boolean isBid, int priceLevel, int sizeLevel) {}
+
+            @Override
+            public void onMarketMode(String alias, MarketMode marketMode) {
+                // Not used in blockchain exchanges.
+            }
+        };
+
+        // Use one worker per core, leaving one for the provider thread itself.
+        int shardCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        ShardedDispatcher dispatcher = new ShardedDispatcher("binance-futures", shardCount, 10_000, strategy, null);
+        // Add the dispatcher to the provider, instead of the strategy itself. It's both a data and a trading listener,
+        // so say which one it's added as.
+        binanceFuturesProvider.addListener((Layer1ApiDataListener) dispatcher);
+
+        // Subscribe to a bunch of instruments, with the minimum pip and size increment of each.
+        Layer1ApiProviderSupportedFeatures supportedFeatures = binanceFuturesProvider.getSupportedFeatures();
+        int subscribed = 0;
+        for (SubscribeInfo instrument : supportedFeatures.knownInstruments) {
+            if (subscribed++ == SUBSCRIBED_INSTRUMENTS) {
+                break;
+            }
+            DefaultAndList<Double> pipsInfo = supportedFeatures.pipsFunction.apply(instrument);
+            DefaultAndList<Double> sizeMultiplierInfo = supportedFeatures.sizeMultiplierFunction.apply(instrument);
+            // The size increment is 1 / size multiplier, so the minimum size increment is the maximum multiplier.
+            binanceFuturesProvider.subscribe(
+                new SubscribeInfoCrypto(
+                    instrument.symbol,
+                    null,
+                    null,
+                    Collections.min(pipsInfo.valueOptions),
+                    Collections.max(sizeMultiplierInfo.valueOptions)
+                )
+            );
+        }
+
+        for (int i = 0; i < 6; i++) {
+            Thread.sleep(10_000);
+            for (ShardedDispatcher.ShardLoad load : dispatcher.getShardLoads()) {
+                System.out.println(load);
+            }
+
+            // A few instruments (e.g. BTCUSD_PERP) are usually much busier than the rest. Spread them out, so that
+            // they don't end up on the same worker.
+            System.out.println("Rebalanced, moved " + dispatcher.rebalance() + " instruments");
+        }
+
+        dispatcher.close();
+        binanceFuturesProvider.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ShardedDispatcherExample().run();
+    }
+}
@@ -0,0 +1,315 @@
+package com.bookmap.exchangeportexamples;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.Layer1ApiTradingListener;
+import velox.api.layer1.data.BalanceInfo;
+import velox.api.layer1.data.ExecutionInfo;
+import velox.api.layer1.data.MarketMode;
+import velox.api.layer1.data.OrderInfoBuilder;
+import velox.api.layer1.data.OrderInfoUpdate;
+import velox.api.layer1.data.OrderStatus;
+import velox.api.layer1.data.OrderType;
+import velox.api.layer1.data.StatusInfo;
+import velox.api.layer1.data.TradeInfo;
+
+/**
+ * Drives millions of synthetic events through the steady-state hot paths and fails if any of them allocates more
+ * bytes per event than its budget.
+ *
+ * Runs as part of {@code gradle test} (and so {@code gradle check}). When adding code that runs on the provider
+ * thread for every event, add a budget for it here.
+ */
+public class AllocationBudgetTest {
+
+    private static final int WARMUP_EVENTS = 2_000_000;
+    private static final int MEASURED_EVENTS = 10_000_000;
+
+    /**
+     * Measurement noise allowed on top of each budget, in bytes per event. A single stray object during the
+     * measured run is far below this, an allocation on every event is far above it.
+     */
+    private static final double TOLERANCE = 0.01;
+
+    private static final String ALIAS = "BTCUSD_PERP";
+
+    /**
+     * The depth updates touch more levels than the queue holds, so once it's full, updates of a queued level are
+     * merged into it and the others are dropped. Both paths are measured.
+     */
+    @Test
+    public void backpressureConflateWithStuckConsumer() {
+        assertWithinBudget(
+            "BackpressureDataListener.onDepth, CONFLATE, queue full",
+            0,
+            measureStuckBackpressureQueue(BackpressurePolicy.CONFLATE, false)
+        );
+    }
+
+    /**
+     * With a consumer that keeps up, most depth updates touch a level that isn't queued yet, so they take the path
+     * that queues (and indexes) a new event, rather than the one that merges into a queued one.
+     */
+    @Test
+    public void backpressureConflateWithConsumerKeepingUp() {
+        try (
+            BackpressureDataListener listener = new BackpressureDataListener(
+                "allocation-check",
+                createNoOpDataListener(),
+                BackpressurePolicy.CONFLATE,
+                1024,
+                null
+            )
+        ) {
+            assertWithinBudget(
+                "BackpressureDataListener.onDepth, CONFLATE, consumer keeping up",
+                0,
+                AllocationHarness.measureBytesPerEvent(
+                    eventIndex -> listener.onDepth(ALIAS, (eventIndex & 1) == 0, eventIndex % 100_000, eventIndex),
+                    WARMUP_EVENTS,
+                    MEASURED_EVENTS
+                )
+            );
+        }
+    }
+
+    @Test
+    public void backpressureDropOldestWithStuckConsumer() {
+        assertWithinBudget(
+            "BackpressureDataListener.onDepth, DROP_OLDEST, queue full",
+            0,
+            measureStuckBackpressureQueue(BackpressurePolicy.DROP_OLDEST, false)
+        );
+    }
+
+    @Test
+    public void backpressureDropNewestWithStuckConsumer() {
+        assertWithinBudget(
+            "BackpressureDataListener.onTrade, DROP_NEWEST, queue full",
+            0,
+            measureStuckBackpressureQueue(BackpressurePolicy.DROP_NEWEST, true)
+        );
+    }
+
+    @Test
+    public void positionAggregatorRead() {
+        PositionAggregator positionAggregator = new PositionAggregator();
+        positionAggregator
+            .createListener("allocation-check")
+            .onStatus(new StatusInfo(ALIAS, 0, 0, "USD", 1, 10_000, 1, 0, 0));
+        double[] positionSum = new double[1];
+
+        double bytesPerEvent = AllocationHarness.measureBytesPerEvent(
+            eventIndex -> {
+                PositionAggregator.Snapshot snapshot = positionAggregator.getSnapshot();
+                positionSum[0] += snapshot.getPosition("allocation-check", ALIAS).position;
+            },
+            WARMUP_EVENTS,
+            MEASURED_EVENTS
+        );
+        // Use the result, so that the JIT compiler can't remove the reads.
+        assertTrue(positionSum[0] != 0, "Position has not been read");
+        assertWithinBudget("PositionAggregator.getSnapshot().getPosition()", 0, bytesPerEvent);
+    }
+
+    /**
+     * Every execution publishes a new snapshot, which is copied on write by design. The budget covers the copy for a
+     * single position, and catches anything that starts allocating on top of it.
+     */
+    @Test
+    public void positionAggregatorExecutions() {
+        Layer1ApiTradingListener listener = new PositionAggregator().createListener("allocation-check");
+        listener.onStatus(new StatusInfo(ALIAS, 0, 0, "USD", 0, 10_000, 0, 1, 1));
+        listener.onOrderUpdated(createOrderUpdate("buy", true, OrderStatus.WORKING));
+        listener.onOrderUpdated(createOrderUpdate("sell", false, OrderStatus.WORKING));
+        // Alternating buys and sells, so the position stays flat.
+        ExecutionInfo buyExecution = new ExecutionInfo("buy", 1, 10_000, "buy-execution", 0);
+        ExecutionInfo sellExecution = new ExecutionInfo("sell", 1, 10_000, "sell-execution", 0);
+
+        assertWithinBudget(
+            "PositionAggregator listener onOrderExecuted",
+            900,
+            AllocationHarness.measureBytesPerEvent(
+                eventIndex -> listener.onOrderExecuted((eventIndex & 1) == 0 ? buyExecution : sellExecution),
+                WARMUP_EVENTS / 10,
+                MEASURED_EVENTS / 10
+            )
+        );
+    }
+
+    @Test
+    public void shardedDispatcherDepth() {
+        try (
+            ShardedDispatcher dispatcher = new ShardedDispatcher(
+                "allocation-check",
+                2,
+                1024,
+                createNoOpDataListener(),
+                null
+            )
+        ) {
+            String[] aliases = { "BTCUSD_PERP", "ETHUSD_PERP", "XRPUSD_PERP", "LTCUSD_PERP" };
+            // Contended locks occasionally allocate a wait queue node, hence the small non-zero budget. An allocation
+            // on every event (a lambda, a boxed value) is still far above it.
+            assertWithinBudget(
+                "ShardedDispatcher.onDepth, 2 shards",
+                1,
+                AllocationHarness.measureBytesPerEvent(
+                    eventIndex ->
+                        dispatcher.onDepth(aliases[eventIndex & 3], (eventIndex & 4) == 0, eventIndex % 100, 1),
+                    WARMUP_EVENTS,
+                    MEASURED_EVENTS
+                )
+            );
+        }
+    }
+
+    /**
+     * Trading events are rare compared to market data, so the dispatcher wraps them into a task (one small object
+     * each). The budget allows that, but not e.g. a new map entry per order update.
+     */
+    @Test
+    public void shardedDispatcherOrders() {
+        try (
+            ShardedDispatcher dispatcher = new ShardedDispatcher(
+                "allocation-check",
+                2,
+                1024,
+                null,
+                createNoOpTradingListener()
+            )
+        ) {
+            OrderInfoUpdate[] orderUpdates = new OrderInfoUpdate[4];
+            ExecutionInfo[] executions = new ExecutionInfo[orderUpdates.length];
+            for (int i = 0; i < orderUpdates.length; i++) {
+                orderUpdates[i] = createOrderUpdate("order-" + i, (i & 1) == 0, OrderStatus.WORKING);
+                executions[i] = new ExecutionInfo("order-" + i, 1, 10_000, "execution-" + i, 0);
+            }
+
+            assertWithinBudget(
+                "ShardedDispatcher.onOrderUpdated / onOrderExecuted, 2 shards",
+                28,
+                AllocationHarness.measureBytesPerEvent(
+                    eventIndex -> {
+                        if ((eventIndex & 1) == 0) {
+                            dispatcher.onOrderUpdated(orderUpdates[(eventIndex >> 1) & 3]);
+                        } else {
+                            dispatcher.onOrderExecuted(executions[(eventIndex >> 1) & 3]);
+                        }
+                    },
+                    WARMUP_EVENTS,
+                    MEASURED_EVENTS
+                )
+            );
+        }
+    }
+
+    private static void assertWithinBudget(String hotPath, double budgetBytesPerEvent, double measuredBytesPerEvent) {
+        System.out.printf(
+            "%-70s | %12.3f bytes/event | budget %12.3f%n",
+            hotPath,
+            measuredBytesPerEvent,
+            budgetBytesPerEvent
+        );
+        assertTrue(
+            measuredBytesPerEvent <= budgetBytesPerEvent + TOLERANCE,
+            hotPath + " allocates " + measuredBytesPerEvent + " bytes per event, budget is " + budgetBytesPerEvent
+        );
+    }
+
+    /**
+     * Measures the provider side of {@link BackpressureDataListener} while the consumer is stuck, so the queue fills
+     * up and the policy kicks in.
+     */
+    private static double measureStuckBackpressureQueue(BackpressurePolicy policy, boolean isTrade) {
+        CountDownLatch consumerRelease = new CountDownLatch(1);
+        Layer1ApiDataListener stuckConsumer = new Layer1ApiDataListener() {
+            @Override
+            public void onTrade(String alias, double priceLevel, int sizeLevel, TradeInfo tradeInfo) {
+                awaitUninterruptibly(consumerRelease);
+            }
+
+            @Override
+            public void onDepth(String alias, boolean isBid, int priceLevel, int sizeLevel) {
+                awaitUninterruptibly(consumerRelease);
+            }
+
+            @Override
+            public void onMarketMode(String alias, MarketMode marketMode) {}
+        };
+        TradeInfo tradeInfo = new TradeInfo(false, true);
+
+        try (
+            BackpressureDataListener listener = new BackpressureDataListener(
+                "allocation-check",
+                stuckConsumer,
+                policy,
+                1024,
+                null
+            )
+        ) {
+            double bytesPerEvent = AllocationHarness.measureBytesPerEvent(
+                eventIndex -> {
+                    if (isTrade) {
+                        listener.onTrade(ALIAS, eventIndex % 100, 1, tradeInfo);
+                    } else {
+                        listener.onDepth(ALIAS, (eventIndex & 1) == 0, eventIndex % 10_000, eventIndex);
+                    }
+                },
+                WARMUP_EVENTS,
+                MEASURED_EVENTS
+            );
+            assertTrue(listener.getDroppedEvents(ALIAS) > 0, "The queue has not filled up");
+            return bytesPerEvent;
+        } finally {
+            consumerRelease.countDown();
+        }
+    }
+
+    private static OrderInfoUpdate createOrderUpdate(String orderId, boolean isBuy, OrderStatus status) {
+        return new OrderInfoBuilder(ALIAS, orderId, isBuy, OrderType.LMT, orderId, false).setStatus(status).build();
+    }
+
+    private static Layer1ApiDataListener createNoOpDataListener() {
+        return new Layer1ApiDataListener() {
+            @Override
+            public void onTrade(String alias, double priceLevel, int sizeLevel, TradeInfo tradeInfo) {}
+
+            @Override
+            public void onDepth(String alias, boolean isBid, int priceLevel, int sizeLevel) {}
+
+            @Override
+            public void onMarketMode(String alias, MarketMode marketMode) {}
+        };
+    }
+
+    private static Layer1ApiTradingListener createNoOpTradingListener() {
+        return new Layer1ApiTradingListener() {
+            @Override
+            public void onOrderUpdated(OrderInfoUpdate orderInfoUpdate) {}
+
+            @Override
+            public void onOrderExecuted(ExecutionInfo executionInfo) {}
+
+            @Override
+            public void onStatus(StatusInfo statusInfo) {}
+
+            @Override
+            public void onBalance(BalanceInfo balanceInfo) {}
+        };
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // Keep waiting, the test releases the latch when it's done.
+            }
+        }
+    }
+}
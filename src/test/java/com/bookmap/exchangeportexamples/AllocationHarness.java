@@ -0,0 +1,51 @@
+package com.bookmap.exchangeportexamples;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures how many bytes a piece of code allocates per event, using the JVM's per-thread allocation counter.
+ *
+ * Only allocations made on the calling thread are counted, which is exactly what matters for the provider thread:
+ * everything allocated there in {@code onDepth} / {@code onTrade} eventually turns into GC pauses.
+ */
+public class AllocationHarness {
+
+    /**
+     * Handles a single synthetic event. Implementations should reuse their arguments (prebuilt TradeInfo etc.), so
+     * that only the allocations of the code under test are measured.
+     */
+    public interface EventDriver {
+        void onEvent(int eventIndex);
+    }
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * @param driver Called once per event.
+     * @param warmupEvents Events sent before measuring, so that the JIT compiler reaches steady state and one-off
+     *     allocations (lazily created map entries, etc.) are not counted.
+     * @param measuredEvents Events sent while measuring.
+     * @return Average number of bytes allocated by the current thread per measured event.
+     */
+    public static double measureBytesPerEvent(EventDriver driver, int warmupEvents, int measuredEvents) {
+        if (!THREAD_MX_BEAN.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("This JVM doesn't support measuring thread allocations");
+        }
+        THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < warmupEvents; i++) {
+            driver.onEvent(i);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        // The counter call itself may allocate a few bytes, but that's spread over millions of events.
+        long allocatedBefore = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < measuredEvents; i++) {
+            driver.onEvent(i);
+        }
+        long allocatedAfter = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+
+        return (double) (allocatedAfter - allocatedBefore) / measuredEvents;
+    }
+}
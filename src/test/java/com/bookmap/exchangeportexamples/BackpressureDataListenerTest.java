@@ -0,0 +1,143 @@
+package com.bookmap.exchangeportexamples;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import velox.api.layer1.Layer1ApiDataListener;
+import velox.api.layer1.data.MarketMode;
+import velox.api.layer1.data.TradeInfo;
+
+public class BackpressureDataListenerTest {
+
+    private static final String ALIAS = "BTCUSD";
+    private static final int CAPACITY = 8;
+
+    private final CountDownLatch consumerEntered = new CountDownLatch(1);
+    private final CountDownLatch consumerRelease = new CountDownLatch(1);
+    private final CountDownLatch bookReliable = new CountDownLatch(1);
+    private final AtomicInteger bookReliableCalls = new AtomicInteger();
+
+    @Test
+    public void resetSurvivesDropOfStaleEvents() throws InterruptedException {
+        try (BackpressureDataListener listener = createStuckListener(BackpressurePolicy.DROP_OLDEST)) {
+            fillQueue(listener);
+            listener.onDepth(ALIAS, true, 100, 1);
+            assertTrue(listener.isBookUnreliable(ALIAS));
+
+            // Evicts a stale update to make room for the marker, and then a few more for the snapshot.
+            listener.markBookReliable(ALIAS);
+            assertTrue(listener.isBookResetPending(ALIAS));
+            for (int i = 0; i < CAPACITY / 2; i++) {
+                listener.onDepth(ALIAS, false, 200 + i, 1);
+            }
+            assertTrue(listener.isBookResetPending(ALIAS));
+
+            consumerRelease.countDown();
+            assertTrue(bookReliable.await(5, TimeUnit.SECONDS));
+            assertFalse(listener.isBookUnreliable(ALIAS));
+            assertFalse(listener.isBookResetPending(ALIAS));
+        }
+    }
+
+    @Test
+    public void resetIsCancelledByDropOfMarker() throws InterruptedException {
+        try (BackpressureDataListener listener = createStuckListener(BackpressurePolicy.DROP_OLDEST)) {
+            fillQueue(listener);
+            listener.markBookReliable(ALIAS);
+            // Evicts all stale updates, then the marker.
+            for (int i = 0; i < CAPACITY; i++) {
+                listener.onDepth(ALIAS, false, 200 + i, 1);
+            }
+            assertFalse(listener.isBookResetPending(ALIAS));
+            assertTrue(listener.isBookUnreliable(ALIAS));
+
+            consumerRelease.countDown();
+            awaitEmptyQueue(listener);
+            assertTrue(listener.isBookUnreliable(ALIAS));
+            assertEquals(0, bookReliableCalls.get());
+        }
+    }
+
+    @Test
+    public void resetIsCancelledByDropAfterMarker() throws InterruptedException {
+        try (BackpressureDataListener listener = createStuckListener(BackpressurePolicy.DROP_NEWEST)) {
+            fillQueue(listener, CAPACITY - 1);
+            listener.markBookReliable(ALIAS);
+            assertTrue(listener.isBookResetPending(ALIAS));
+            listener.onDepth(ALIAS, false, 200, 1);
+            assertFalse(listener.isBookResetPending(ALIAS));
+            assertTrue(listener.isBookUnreliable(ALIAS));
+
+            consumerRelease.countDown();
+            awaitEmptyQueue(listener);
+            assertTrue(listener.isBookUnreliable(ALIAS));
+            assertEquals(0, bookReliableCalls.get());
+        }
+    }
+
+    /**
+     * Creates a listener whose consumer blocks on the first event until {@link #consumerRelease} is released.
+     */
+    private BackpressureDataListener createStuckListener(BackpressurePolicy policy) {
+        Layer1ApiDataListener stuckConsumer = new Layer1ApiDataListener() {
+            @Override
+            public void onTrade(String alias, double priceLevel, int sizeLevel, TradeInfo tradeInfo) {}
+
+            @Override
+            public void onDepth(String alias, boolean isBid, int priceLevel, int sizeLevel) {
+                consumerEntered.countDown();
+                try {
+                    consumerRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onMarketMode(String alias, MarketMode marketMode) {}
+        };
+        BackpressureDataListener.GapListener gapListener = new BackpressureDataListener.GapListener() {
+            @Override
+            public void onBookUnreliable(String alias) {}
+
+            @Override
+            public void onBookReliable(String alias) {
+                bookReliableCalls.incrementAndGet();
+                bookReliable.countDown();
+            }
+
+            @Override
+            public void onConsumerDisconnected() {}
+        };
+        return new BackpressureDataListener("test", stuckConsumer, policy, CAPACITY, gapListener);
+    }
+
+    private void fillQueue(BackpressureDataListener listener) throws InterruptedException {
+        fillQueue(listener, CAPACITY);
+    }
+
+    /**
+     * Waits for the consumer to get stuck on the first update, then queues 'queuedEvents' more stale updates.
+     */
+    private void fillQueue(BackpressureDataListener listener, int queuedEvents) throws InterruptedException {
+        listener.onDepth(ALIAS, true, 1, 1);
+        assertTrue(consumerEntered.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < queuedEvents; i++) {
+            listener.onDepth(ALIAS, true, 10 + i, 1);
+        }
+        assertEquals(queuedEvents, listener.getQueuedEvents());
+    }
+
+    private static void awaitEmptyQueue(BackpressureDataListener listener) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (listener.getQueuedEvents() > 0) {
+            assertTrue(System.nanoTime() < deadline, "Queue not drained");
+            Thread.sleep(1);
+        }
+    }
+}
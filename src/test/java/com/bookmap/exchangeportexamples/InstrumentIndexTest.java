@@ -0,0 +1,213 @@
+package com.bookmap.exchangeportexamples;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+import velox.api.layer1.Layer1ApiProvider;
+
+public class InstrumentIndexTest {
+
+    /**
+     * Provider, symbol, expected canonical instrument (null if the symbol must not be recognized).
+     */
+    private static final String[][] NORMALIZED_SYMBOLS = {
+        // Perpetuals
+        { "binanceFutures", "ETHUSD_PERP", "ETH/USD PERPETUAL" },
+        { "binanceFutures", "DOTUSD_PERP", "DOT/USD PERPETUAL" },
+        { "binanceFutures", "BTCUSDT", "BTC/USDT PERPETUAL" },
+        { "krakenFutures", "PI_ETHUSD", "ETH/USD PERPETUAL" },
+        { "krakenFutures", "PF_XBTUSD", "BTC/USD PERPETUAL" },
+        { "krakenFutures", "PF_DOTUSD", "DOT/USD PERPETUAL" },
+        { "deribit", "BTC-PERPETUAL", "BTC/USD PERPETUAL" },
+        { "ftx", "BTC-PERP", "BTC/USD PERPETUAL" },
+        { "bybit", "XBTUSD", "BTC/USD PERPETUAL" },
+        { "bitfinex", "tBTCF0:USTF0", "BTC/USDT PERPETUAL" },
+        { "bitflyer", "FX_BTC_JPY", "BTC/JPY PERPETUAL" },
+        { "coinflex", "BTC-USD-SWAP-LIN", "BTC/USD PERPETUAL" },
+        // Futures
+        { "krakenFutures", "FI_XBTUSD_210625", "BTC/USD FUTURE" },
+        { "binanceFutures", "BTCUSD_210625", "BTC/USD FUTURE" },
+        { "deribit", "BTC-25JUN21", "BTC/USD FUTURE" },
+        { "ftx", "BTC-0625", "BTC/USD FUTURE" },
+        // Spot
+        { "bitfinex", "tBTCUSD", "BTC/USD SPOT" },
+        { "bitfinex", "tDOTUSD", "DOT/USD SPOT" },
+        { "bitfinex", "tBTCUST", "BTC/USDT SPOT" },
+        { "bitstamp", "btcusd", "BTC/USD SPOT" },
+        { "binanceSpot", "ETHBTC", "ETH/BTC SPOT" },
+        { "binanceSpot", "BATUSD", "BAT/USD SPOT" },
+        { "binanceSpot", "BTCTUSD", "BTC/TUSD SPOT" },
+        { "binanceSpot", "ETHBUSD", "ETH/BUSD SPOT" },
+        { "binanceSpot", "USTUSDT", "UST/USDT SPOT" },
+        { "binanceSpot", "LUNAUST", "LUNA/UST SPOT" },
+        { "krakenSpot", "XXBTZUSD", "BTC/USD SPOT" },
+        { "krakenSpot", "XBT/USD", "BTC/USD SPOT" },
+        { "ftx", "BTC/USD", "BTC/USD SPOT" },
+        { "huobi", "btcusdt", "BTC/USDT SPOT" },
+        // Not supported
+        { "deribit", "BTC-25JUN21-30000-C", null },
+        { "ftx", "BTC-MOVE-0625", null },
+        { "ftx", "BTC-MOVE-WK-0625", null },
+        { "binanceSpot", "BTC", null },
+        { "bybit", "BTCUSDZ21", null }
+    };
+
+    @Test
+    public void normalize() {
+        for (String[] normalizedSymbol : NORMALIZED_SYMBOLS) {
+            InstrumentIndex.CanonicalInstrument canonicalInstrument = InstrumentIndex.normalize(
+                normalizedSymbol[0],
+                normalizedSymbol[1]
+            );
+            assertEquals(
+                normalizedSymbol[2],
+                canonicalInstrument == null ? null : canonicalInstrument.toString(),
+                normalizedSymbol[0] + " " + normalizedSymbol[1]
+            );
+        }
+    }
+
+    @Test
+    public void normalizeUsesBasesOfOtherInstruments() {
+        assertEquals("SHIBB/USD SPOT", InstrumentIndex.normalize("binanceSpot", "SHIBBUSD").toString());
+        assertEquals(
+            "SHIB/BUSD SPOT",
+            InstrumentIndex.normalize("binanceSpot", "SHIBBUSD", new HashSet<>(Arrays.asList("SHIB"))).toString()
+        );
+        assertNull(InstrumentIndex.normalize("ftx", "SHIB-PERP"));
+        assertEquals(
+            "SHIB/USD PERPETUAL",
+            InstrumentIndex.normalize("ftx", "SHIB-PERP", new HashSet<>(Arrays.asList("SHIB"))).toString()
+        );
+    }
+
+    @Test
+    public void keepsAllInstrumentsOfProvider() throws IOException {
+        Path file = Files.createTempFile("instrument-index", ".tsv");
+        try {
+            Files.write(
+                file,
+                Arrays.asList(
+                    "# InstrumentIndex v2",
+                    "# Providers\tkrakenFutures",
+                    "krakenFutures\tPI_XBTUSD\t\t\t0.5\t1.0\tBTC\tUSD\tPERPETUAL",
+                    "krakenFutures\tPF_XBTUSD\t\t\t0.5\t1.0E-4\tBTC\tUSD\tPERPETUAL",
+                    "krakenFutures\tFI_XBTUSD_210625\t\t\t0.5\t1.0\tBTC\tUSD\tFUTURE",
+                    "krakenFutures\tFI_XBTUSD_210924\t\t\t0.5\t1.0\tBTC\tUSD\tFUTURE"
+                ),
+                StandardCharsets.UTF_8
+            );
+            InstrumentIndex index = InstrumentIndex.load(file);
+
+            List<InstrumentIndex.VenueInstrument> perpetuals = index.get(
+                new InstrumentIndex.CanonicalInstrument("BTC", "USD", InstrumentIndex.ContractType.PERPETUAL),
+                "krakenFutures"
+            );
+            assertEquals(2, perpetuals.size());
+            assertEquals("PI_XBTUSD", perpetuals.get(0).getSymbol());
+            assertEquals("PF_XBTUSD", perpetuals.get(1).getSymbol());
+
+            List<InstrumentIndex.VenueInstrument> futures = index.get(
+                new InstrumentIndex.CanonicalInstrument("BTC", "USD", InstrumentIndex.ContractType.FUTURE),
+                "krakenFutures"
+            );
+            assertEquals(2, futures.size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void saveKeepsListingOrder() throws IOException {
+        List<String> lines = Arrays.asList(
+            "# InstrumentIndex v2",
+            "# Providers\tkrakenFutures\tbitfinex",
+            "krakenFutures\tPI_ETHUSD\t\t\t0.05\t1.0\tETH\tUSD\tPERPETUAL",
+            "krakenFutures\tPF_ETHUSD\t\t\t0.1\t0.001\tETH\tUSD\tPERPETUAL",
+            "bitfinex\ttBTCUSD\tBFX\tspot\t1.0\t1.0E-4\tBTC\tUSD\tSPOT",
+            "bitfinex\ttBTCUSD\tBFX\tmargin\t1.0\t1.0E-4\tBTC\tUSD\tSPOT",
+            "bitfinex\ttBTCXX"
+        );
+        Path file = Files.createTempFile("instrument-index", ".tsv");
+        Path savedFile = Files.createTempFile("instrument-index", ".tsv");
+        try {
+            Files.write(file, lines, StandardCharsets.UTF_8);
+            InstrumentIndex.load(file).save(savedFile);
+            assertEquals(lines, Files.readAllLines(savedFile, StandardCharsets.UTF_8));
+
+            InstrumentIndex index = InstrumentIndex.load(savedFile);
+            List<InstrumentIndex.VenueInstrument> perpetuals = index.get(
+                new InstrumentIndex.CanonicalInstrument("ETH", "USD", InstrumentIndex.ContractType.PERPETUAL),
+                "krakenFutures"
+            );
+            assertEquals("PI_ETHUSD", perpetuals.get(0).getSymbol());
+            assertEquals("PF_ETHUSD", perpetuals.get(1).getSymbol());
+
+            // Same symbol, different type.
+            List<InstrumentIndex.VenueInstrument> spots = index.get(
+                new InstrumentIndex.CanonicalInstrument("BTC", "USD", InstrumentIndex.ContractType.SPOT),
+                "bitfinex"
+            );
+            assertEquals(2, spots.size());
+            assertEquals("spot", index.getBySymbol("bitfinex", "tBTCUSD").subscribeInfo.type);
+        } finally {
+            Files.delete(file);
+            Files.delete(savedFile);
+        }
+    }
+
+    @Test
+    public void loadOrBuildRebuildsForOtherProviders() throws IOException {
+        Path file = Files.createTempFile("instrument-index", ".tsv");
+        AtomicBoolean isBuilt = new AtomicBoolean();
+        Supplier<Map<String, Layer1ApiProvider>> providers = () -> {
+            isBuilt.set(true);
+            return Collections.emptyMap();
+        };
+        try {
+            Files.write(
+                file,
+                Arrays.asList(
+                    "# InstrumentIndex v2",
+                    "# Providers\tkrakenFutures",
+                    "krakenFutures\tPI_XBTUSD\t\t\t0.5\t1.0\tBTC\tUSD\tPERPETUAL"
+                ),
+                StandardCharsets.UTF_8
+            );
+
+            InstrumentIndex index = InstrumentIndex.loadOrBuild(
+                file,
+                Duration.ofDays(1),
+                Arrays.asList("krakenFutures"),
+                providers
+            );
+            assertFalse(isBuilt.get());
+            assertEquals(Arrays.asList("krakenFutures"), index.getProviders());
+
+            InstrumentIndex.loadOrBuild(
+                file,
+                Duration.ofDays(1),
+                Arrays.asList("krakenFutures", "bitfinex"),
+                providers
+            );
+            assertTrue(isBuilt.get());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}